@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The plan for binding elements to objects of an annotated class. A plan is made once per class and holds
+ * method handles for creating the objects and setting each bound field, so that binding an element is only
+ * a matter of looking up the fields by name. Numbers and booleans are parsed straight from the content of
+ * the document, without copying the value into a string first.
+ * @version 1.0.0
+ * @author Mudbill
+ * @see XMLElement
+ */
+final class Binding {
+
+	private static final ClassValue<Binding> PLANS = new ClassValue<Binding>() {
+		@Override
+		protected Binding computeValue(Class<?> type) {
+			return new Binding(type);
+		}
+	};
+	
+	private static final int STRING = 0;
+	private static final int INT = 1;
+	private static final int LONG = 2;
+	private static final int SHORT = 3;
+	private static final int BYTE = 4;
+	private static final int DOUBLE = 5;
+	private static final int FLOAT = 6;
+	private static final int BOOLEAN = 7;
+	private static final int CHAR = 8;
+	private static final int OBJECT = 9;
+	
+	final Class<?> type;
+	/** Names of the elements from the top level of the document down to the bound elements. */
+	final String[] path;
+	private final MethodHandle constructor;
+	private final Map<String, Property> attributes = new HashMap<String, Property>();
+	private final Map<String, Property> children = new HashMap<String, Property>();
+	private Property text;
+	
+	/**
+	 * Get the plan for the given class, making it the first time.
+	 * @param type
+	 * @return
+	 * @throws IllegalArgumentException if the class can't be bound.
+	 */
+	static Binding of(Class<?> type) {
+		return PLANS.get(type);
+	}
+	
+	private Binding(Class<?> type) {
+		this.type = type;
+		XMLElement element = type.getAnnotation(XMLElement.class);
+		if (element == null || element.value().isEmpty()) {
+			throw new IllegalArgumentException(type.getName() + " has no @XMLElement path.");
+		}
+		this.path = element.value().split("/");
+		
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			Constructor<?> c = type.getDeclaredConstructor();
+			c.setAccessible(true);
+			this.constructor = lookup.unreflectConstructor(c).asType(MethodType.methodType(Object.class));
+		}
+		catch (NoSuchMethodException | IllegalAccessException | RuntimeException e) {
+			throw new IllegalArgumentException(type.getName() + " has no accessible constructor without parameters.", e);
+		}
+		
+		for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+			for (Field field : c.getDeclaredFields()) {
+				XMLAttribute attribute = field.getAnnotation(XMLAttribute.class);
+				XMLElement child = field.getAnnotation(XMLElement.class);
+				boolean isText = field.isAnnotationPresent(XMLText.class);
+				if (attribute == null && child == null && !isText) continue;
+				
+				Property property = new Property(lookup, field);
+				if (attribute != null) {
+					attributes.put(attribute.value().isEmpty() ? field.getName() : attribute.value(), property);
+				}
+				if (child != null) {
+					children.put(child.value().isEmpty() ? field.getName() : child.value(), property);
+				}
+				if (isText) {
+					text = property;
+				}
+			}
+		}
+	}
+	
+	Object newInstance() throws XMLException {
+		try {
+			return (Object) constructor.invokeExact();
+		}
+		catch (Throwable t) {
+			throw new XMLException("Failed to create " + type.getName() + ".", t);
+		}
+	}
+	
+	/**
+	 * Get the field bound to the attribute with the given name, or null if there is none.
+	 */
+	Property getAttribute(String name) {
+		return attributes.get(name);
+	}
+	
+	/**
+	 * Get the field bound to the text of the child element with the given name, or null if there is none.
+	 */
+	Property getChild(String name) {
+		return children.get(name);
+	}
+	
+	/**
+	 * Get the field bound to the text of the element, or null if there is none.
+	 */
+	Property getText() {
+		return text;
+	}
+	
+	/**
+	 * A bound field, with a setter typed for the kind of value it takes.
+	 */
+	static final class Property {
+		
+		private final Field field;
+		private final int kind;
+		private final MethodHandle setter;
+		
+		Property(MethodHandles.Lookup lookup, Field field) {
+			if (Modifier.isStatic(field.getModifiers()) || Modifier.isFinal(field.getModifiers())) {
+				throw new IllegalArgumentException("Bound field " + field + " can't be static or final.");
+			}
+			this.field = field;
+			Class<?> t = field.getType();
+			if (t == String.class) kind = STRING;
+			else if (t == int.class) kind = INT;
+			else if (t == long.class) kind = LONG;
+			else if (t == short.class) kind = SHORT;
+			else if (t == byte.class) kind = BYTE;
+			else if (t == double.class) kind = DOUBLE;
+			else if (t == float.class) kind = FLOAT;
+			else if (t == boolean.class) kind = BOOLEAN;
+			else if (t == char.class) kind = CHAR;
+			else if (t == Integer.class || t == Long.class || t == Short.class || t == Byte.class || t == Double.class 
+					|| t == Float.class || t == Boolean.class || t == Character.class || t.isEnum()) kind = OBJECT;
+			else throw new IllegalArgumentException("Bound field " + field + " has an unsupported type.");
+			
+			try {
+				field.setAccessible(true);
+				MethodHandle handle = lookup.unreflectSetter(field);
+				Class<?> valueType = t.isPrimitive() ? t : Object.class;
+				this.setter = handle.asType(MethodType.methodType(void.class, Object.class, valueType));
+			}
+			catch (IllegalAccessException | RuntimeException e) {
+				throw new IllegalArgumentException("Bound field " + field + " is not accessible.", e);
+			}
+		}
+		
+		/**
+		 * Set this field of the given object to the value between the given indices of the content, which may
+		 * contain entities.
+		 */
+		void set(Object target, String content, int start, int end) throws XMLException {
+			if (Entities.indexOf(content, '&', start, end) != -1) {
+				// Entities are rare in values, so just decode them first.
+				String value = Entities.decode(content, start, end);
+				setValue(target, value, 0, value.length());
+			}
+			else {
+				setValue(target, content, start, end);
+			}
+		}
+		
+		/**
+		 * Set this field of the given object to the given value, which has already been decoded.
+		 */
+		void set(Object target, String value) throws XMLException {
+			setValue(target, value, 0, value.length());
+		}
+		
+		private void setValue(Object target, String text, int start, int end) throws XMLException {
+			try {
+				switch (kind) {
+				case STRING: setter.invokeExact(target, (Object) text.substring(start, end)); break;
+				case INT: setter.invokeExact(target, (int) parseInteger(text, start, end, Integer.MIN_VALUE, Integer.MAX_VALUE)); break;
+				case LONG: setter.invokeExact(target, parseInteger(text, start, end, Long.MIN_VALUE, Long.MAX_VALUE)); break;
+				case SHORT: setter.invokeExact(target, (short) parseInteger(text, start, end, Short.MIN_VALUE, Short.MAX_VALUE)); break;
+				case BYTE: setter.invokeExact(target, (byte) parseInteger(text, start, end, Byte.MIN_VALUE, Byte.MAX_VALUE)); break;
+				case DOUBLE: setter.invokeExact(target, Double.parseDouble(text.substring(start, end))); break;
+				case FLOAT: setter.invokeExact(target, Float.parseFloat(text.substring(start, end))); break;
+				case BOOLEAN: setter.invokeExact(target, parseBoolean(text, start, end)); break;
+				case CHAR: setter.invokeExact(target, parseChar(text, start, end)); break;
+				default: setter.invokeExact(target, parseObject(text.substring(start, end).trim()));
+				}
+			}
+			catch (NumberFormatException e) {
+				throw new XMLException("Invalid value \"" + text.substring(start, end) + "\" for " + field.getDeclaringClass().getName() 
+						+ "." + field.getName() + ".", e);
+			}
+			catch (RuntimeException | Error e) {
+				throw e;
+			}
+			catch (Throwable t) {
+				throw new XMLException("Failed to set " + field.getDeclaringClass().getName() + "." + field.getName() + ".", t);
+			}
+		}
+		
+		private Object parseObject(String value) {
+			Class<?> t = field.getType();
+			if (t == Integer.class) return (int) parseInteger(value, 0, value.length(), Integer.MIN_VALUE, Integer.MAX_VALUE);
+			if (t == Long.class) return parseInteger(value, 0, value.length(), Long.MIN_VALUE, Long.MAX_VALUE);
+			if (t == Short.class) return (short) parseInteger(value, 0, value.length(), Short.MIN_VALUE, Short.MAX_VALUE);
+			if (t == Byte.class) return (byte) parseInteger(value, 0, value.length(), Byte.MIN_VALUE, Byte.MAX_VALUE);
+			if (t == Double.class) return Double.valueOf(value);
+			if (t == Float.class) return Float.valueOf(value);
+			if (t == Boolean.class) return parseBoolean(value, 0, value.length());
+			if (t == Character.class) return parseChar(value, 0, value.length());
+			return toEnum(t, value);
+		}
+		
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		private static Object toEnum(Class<?> type, String value) {
+			try {
+				return Enum.valueOf((Class<? extends Enum>) type, value);
+			}
+			catch (IllegalArgumentException e) {
+				throw new NumberFormatException("No constant " + value + " in " + type.getName() + ".");
+			}
+		}
+	}
+	
+	/**
+	 * Parse a decimal integer between the given indices of the text, ignoring whitespace around it.
+	 * @throws NumberFormatException if there is no valid integer within the given range of values.
+	 */
+	static long parseInteger(String text, int start, int end, long min, long max) {
+		while (start < end && text.charAt(start) <= ' ') start++;
+		while (end > start && text.charAt(end - 1) <= ' ') end--;
+		if (start == end) throw new NumberFormatException("Empty number.");
+		
+		boolean negative = false;
+		char first = text.charAt(start);
+		if (first == '-' || first == '+') {
+			negative = first == '-';
+			if (++start == end) throw new NumberFormatException("Missing digits.");
+		}
+		// Accumulate negatively, so that the smallest value doesn't overflow.
+		long limit = negative ? min : -max;
+		long result = 0;
+		for (int i = start; i < end; i++) {
+			int digit = text.charAt(i) - '0';
+			if (digit < 0 || digit > 9 || result < limit / 10) throw new NumberFormatException("Invalid number.");
+			result *= 10;
+			if (result < limit + digit) throw new NumberFormatException("Number out of range.");
+			result -= digit;
+		}
+		return negative ? result : -result;
+	}
+	
+	private static boolean parseBoolean(String text, int start, int end) {
+		while (start < end && text.charAt(start) <= ' ') start++;
+		while (end > start && text.charAt(end - 1) <= ' ') end--;
+		return end - start == 4 && text.regionMatches(true, start, "true", 0, 4);
+	}
+	
+	private static char parseChar(String text, int start, int end) {
+		if (end - start != 1) throw new NumberFormatException("Expected a single character.");
+		return text.charAt(start);
+	}
+
+}
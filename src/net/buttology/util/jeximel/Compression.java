@@ -0,0 +1,381 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package net.buttology.util.jeximel;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Helper for reading and writing compressed XML files. The compression format is detected from the
+ * magic bytes at the start of the stream. Inflating and deflating runs on a separate thread which
+ * hands chunks of data to and from the caller through a small bounded queue. When reading, the parser
+ * tokenizes the text a chunk at a time as it arrives, so inflating overlaps with parsing. When writing,
+ * deflating overlaps with writing the elements.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+final class Compression {
+
+	/** Size of each chunk passed between the threads. */
+	static final int CHUNK_SIZE = 64 * 1024;
+	/** Number of chunks that may be waiting in the queue before the producer blocks. */
+	private static final int QUEUE_SIZE = 4;
+	/** Marker chunk signalling the end of the data. */
+	private static final byte[] EOF = new byte[0];
+	/** Marker chunk telling the compressor to stop without finishing the compressed data. */
+	private static final byte[] ABORT = new byte[0];
+
+	private static final int GZIP_MAGIC_0 = 0x1f;
+	private static final int GZIP_MAGIC_1 = 0x8b;
+	private static final int ZSTD_MAGIC_0 = 0x28;
+	private static final int ZSTD_MAGIC_1 = 0xb5;
+	private static final int ZSTD_MAGIC_2 = 0x2f;
+	private static final int ZSTD_MAGIC_3 = 0xfd;
+
+	private Compression() {}
+
+	/**
+	 * Wrap the given stream so that it yields decompressed data. If no known compression format is detected,
+	 * the stream is returned as-is (but buffered) so that plain XML can be read through the same path.
+	 * @param is
+	 * @return
+	 * @throws XMLException
+	 */
+	static InputStream inflate(InputStream is) throws XMLException {
+		if (is == null) throw new NullPointerException("Input stream cannot be null.");
+		BufferedInputStream bis = new BufferedInputStream(is, CHUNK_SIZE);
+		int[] magic = new int[4];
+		try {
+			bis.mark(magic.length);
+			for (int i = 0; i < magic.length; i++) {
+				magic[i] = bis.read();
+			}
+			bis.reset();
+		}
+		catch (IOException e) {
+			throw new XMLException("Failed to read XML file.", e);
+		}
+
+		if (magic[0] == GZIP_MAGIC_0 && magic[1] == GZIP_MAGIC_1) {
+			try {
+				return new InflaterPipe(new GZIPInputStream(bis, CHUNK_SIZE));
+			}
+			catch (IOException e) {
+				throw new XMLException("Failed to read gzip header.", e);
+			}
+		}
+		if (magic[0] == ZSTD_MAGIC_0 && magic[1] == ZSTD_MAGIC_1 && magic[2] == ZSTD_MAGIC_2 && magic[3] == ZSTD_MAGIC_3) {
+			throw new XMLException("Zstandard compressed files are not supported.");
+		}
+		return bis;
+	}
+
+	/**
+	 * Wrap the given stream so that everything written to it is gzip compressed on a separate thread.
+	 * Closing the returned stream waits for the compression to finish and closes the given stream.
+	 * @param os
+	 * @return
+	 * @throws XMLException
+	 */
+	static OutputStream deflate(OutputStream os) throws XMLException {
+		if (os == null) throw new NullPointerException("Output stream cannot be null.");
+		try {
+			return new DeflaterPipe(new GZIPOutputStream(os, CHUNK_SIZE), os);
+		}
+		catch (IOException e) {
+			throw new XMLException("Failed to write gzip header.", e);
+		}
+	}
+
+	/**
+	 * Stop the background thread behind the given stream after writing to it failed, and close the stream it
+	 * writes to without finishing the compressed data. Streams that are not backed by a background thread are ignored.
+	 * @param os
+	 */
+	static void abort(OutputStream os) {
+		if (os instanceof DeflaterPipe) {
+			((DeflaterPipe) os).abort();
+		}
+	}
+
+	/**
+	 * Throw an exception if the background thread behind the given stream failed. Streams that are not
+	 * backed by a background thread are ignored.
+	 * @param is
+	 * @throws XMLException
+	 */
+	static void checkError(InputStream is) throws XMLException {
+		if (is instanceof InflaterPipe && ((InflaterPipe) is).error != null) {
+			throw new XMLException("Failed to decompress XML file.", ((InflaterPipe) is).error);
+		}
+	}
+
+	/**
+	 * Input stream which is fed with decompressed chunks by a background thread.
+	 */
+	private static class InflaterPipe extends InputStream implements Runnable {
+
+		private final InputStream source;
+		private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+		private final Thread thread;
+		private volatile Throwable error;
+		private byte[] chunk = null;
+		private int pos = 0;
+		private boolean eof = false;
+
+		InflaterPipe(InputStream source) {
+			this.source = source;
+			this.thread = new Thread(this, "jeximel-inflater");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					byte[] buf = new byte[CHUNK_SIZE];
+					int len = 0;
+					int n;
+					while (len < buf.length && (n = source.read(buf, len, buf.length - len)) != -1) {
+						len += n;
+					}
+					if (len > 0) {
+						if (len < buf.length) {
+							byte[] trimmed = new byte[len];
+							System.arraycopy(buf, 0, trimmed, 0, len);
+							buf = trimmed;
+						}
+						queue.put(buf);
+					}
+					if (len < CHUNK_SIZE) break;
+				}
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (Throwable t) {
+				error = t;
+			}
+			finally {
+				try {
+					source.close();
+				}
+				catch (IOException e) {
+					if (error == null) error = e;
+				}
+			}
+			try {
+				queue.put(EOF);
+			}
+			catch (InterruptedException e) {
+				// The reader has gone away, so nobody is waiting for the marker.
+			}
+		}
+
+		private boolean fill() throws IOException {
+			if (eof) return false;
+			while (chunk == null || pos >= chunk.length) {
+				try {
+					chunk = queue.take();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting for decompressed data.", e);
+				}
+				pos = 0;
+				if (chunk == EOF) {
+					eof = true;
+					if (error != null) throw new IOException("Failed to decompress data.", error);
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) return -1;
+			return chunk[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) return 0;
+			if (!fill()) return -1;
+			int n = Math.min(len, chunk.length - pos);
+			System.arraycopy(chunk, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!eof) {
+				eof = true;
+				thread.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Output stream which hands chunks of data to a background thread for compression.
+	 */
+	private static class DeflaterPipe extends OutputStream implements Runnable {
+
+		private final OutputStream target;
+		private final OutputStream raw;
+		private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(QUEUE_SIZE);
+		private final Thread thread;
+		private volatile Throwable error;
+		private byte[] chunk = new byte[CHUNK_SIZE];
+		private int pos = 0;
+		private boolean closed = false;
+
+		DeflaterPipe(OutputStream target, OutputStream raw) {
+			this.target = target;
+			this.raw = raw;
+			this.thread = new Thread(this, "jeximel-deflater");
+			this.thread.setDaemon(true);
+			this.thread.start();
+		}
+
+		@Override
+		public void run() {
+			try {
+				byte[] buf;
+				while ((buf = queue.take()) != EOF) {
+					if (buf == ABORT) {
+						raw.close();
+						return;
+					}
+					target.write(buf);
+				}
+				target.close();
+			}
+			catch (InterruptedException e) {
+				error = e;
+			}
+			catch (Throwable t) {
+				error = t;
+				// Keep draining so that the writer never blocks on a full queue.
+				try {
+					byte[] buf;
+					while ((buf = queue.take()) != EOF && buf != ABORT);
+					raw.close();
+				}
+				catch (InterruptedException | IOException e) {
+					// Nothing more to drain, or to close.
+				}
+			}
+		}
+
+		/**
+		 * Stop the compressor and close the stream it writes to, throwing away anything not yet compressed.
+		 */
+		void abort() {
+			if (closed) return;
+			closed = true;
+			pos = 0;
+			try {
+				queue.put(ABORT);
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		private void checkError() throws IOException {
+			if (error != null) throw new IOException("Failed to compress data.", error);
+		}
+
+		private void pass(byte[] buf) throws IOException {
+			try {
+				queue.put(buf);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while passing data to the compressor.", e);
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			if (pos == 0) return;
+			byte[] buf = chunk;
+			if (pos < buf.length) {
+				buf = new byte[pos];
+				System.arraycopy(chunk, 0, buf, 0, pos);
+			}
+			else {
+				chunk = new byte[CHUNK_SIZE];
+			}
+			pos = 0;
+			pass(buf);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (closed) throw new IOException("Stream is closed.");
+			if (pos == chunk.length) {
+				checkError();
+				flushChunk();
+			}
+			chunk[pos++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closed) throw new IOException("Stream is closed.");
+			while (len > 0) {
+				if (pos == chunk.length) {
+					checkError();
+					flushChunk();
+				}
+				int n = Math.min(len, chunk.length - pos);
+				System.arraycopy(b, off, chunk, pos, n);
+				pos += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) return;
+			closed = true;
+			flushChunk();
+			pass(EOF);
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for the compressor.", e);
+			}
+			checkError();
+		}
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the descendants of an element in document order. The walk keeps a stack of spliterators
+ * over the children of each level, so that it never recurses and never copies the children into arrays.
+ * Splitting hands off the upper levels of the stack, half of the remaining siblings at the bottom level, or
+ * a single element together with its children, always taking the part which comes first in the document.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+final class DescendantSpliterator implements Spliterator<Element>, Consumer<Element> {
+
+	/** An element to hand out before anything on the stack. Its children are already on the stack. */
+	private Element pending;
+	/** Spliterators over the remaining children of each level, with the deepest level first. */
+	private final Deque<Spliterator<Element>> stack;
+	/** A rough estimate of the remaining elements, halved on each split as the real count isn't known. */
+	private long estimate;
+	/** The element last handed out by a spliterator on the stack. */
+	private Element next;
+	
+	DescendantSpliterator(Element element) {
+		this(null, new ArrayDeque<Spliterator<Element>>(), Long.MAX_VALUE);
+		if (element.hasChildren()) {
+			stack.push(element.getChildMap().values().spliterator());
+		}
+	}
+	
+	private DescendantSpliterator(Element pending, Deque<Spliterator<Element>> stack, long estimate) {
+		this.pending = pending;
+		this.stack = stack;
+		this.estimate = estimate;
+	}
+	
+	@Override
+	public void accept(Element element) {
+		next = element;
+	}
+	
+	@Override
+	public boolean tryAdvance(Consumer<? super Element> action) {
+		Element element = advance();
+		if (element == null) return false;
+		action.accept(element);
+		return true;
+	}
+	
+	/**
+	 * Get the next element, pushing its children onto the stack.
+	 * @return the element, or null if there are no more.
+	 */
+	private Element advance() {
+		if (pending != null) {
+			Element element = pending;
+			pending = null;
+			return element;
+		}
+		while (!stack.isEmpty()) {
+			if (stack.peek().tryAdvance(this)) {
+				Element element = next;
+				next = null;
+				if (element.hasChildren()) {
+					stack.push(element.getChildMap().values().spliterator());
+				}
+				return element;
+			}
+			stack.pop();
+		}
+		return null;
+	}
+	
+	@Override
+	public Spliterator<Element> trySplit() {
+		if (stack.isEmpty()) return null;
+		if (stack.size() > 1) {
+			// Everything above the bottom level comes before the rest of the bottom level.
+			Deque<Spliterator<Element>> prefix = new ArrayDeque<Spliterator<Element>>();
+			while (stack.size() > 1) {
+				prefix.addLast(stack.pollFirst());
+			}
+			return split(prefix);
+		}
+		Spliterator<Element> half = stack.peek().trySplit();
+		if (half != null) {
+			Deque<Spliterator<Element>> prefix = new ArrayDeque<Spliterator<Element>>();
+			prefix.push(half);
+			return split(prefix);
+		}
+		if (pending != null) {
+			// Hand off the pending element on its own, leaving its children here.
+			DescendantSpliterator prefix = new DescendantSpliterator(pending, new ArrayDeque<Spliterator<Element>>(), 1);
+			pending = null;
+			return prefix;
+		}
+		// The bottom level can't be split, so step into it and hand off the next element with its children.
+		Element element = advance();
+		if (element == null) return null;
+		pending = element;
+		return trySplit();
+	}
+	
+	private DescendantSpliterator split(Deque<Spliterator<Element>> prefix) {
+		estimate >>>= 1;
+		DescendantSpliterator split = new DescendantSpliterator(pending, prefix, estimate);
+		pending = null;
+		return split;
+	}
+	
+	@Override
+	public long estimateSize() {
+		return estimate;
+	}
+	
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+	
+}
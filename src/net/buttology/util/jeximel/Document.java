@@ -18,6 +18,10 @@
  */
 package net.buttology.util.jeximel;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
 /**
  * This class represents an entire XML document, including the XML declaration if 
  * present and all the child elements that come directly under the top level. 
@@ -31,6 +35,9 @@ public class Document
 	private String version;
 	private String encoding;
 	private boolean standalone = true;
+	private String source;
+	private boolean declarationChanged = false;
+	private SourcePositions positions;
 	
 	/**
 	 * Creates a blank XML document.
@@ -103,6 +110,8 @@ public class Document
 	 */
 	public void setVersion(String version) {
 		this.version = version;
+		this.declarationChanged = true;
+		if (root._journal != null) root._journal.declarationChanged();
 	}
 
 	/**
@@ -119,6 +128,8 @@ public class Document
 	 */
 	public void setEncoding(String encoding) {
 		this.encoding = encoding;
+		this.declarationChanged = true;
+		if (root._journal != null) root._journal.declarationChanged();
 	}
 
 	/**
@@ -135,6 +146,122 @@ public class Document
 	 */
 	public void setStandalone(boolean standalone) {
 		this.standalone = standalone;
+		this.declarationChanged = true;
+		if (root._journal != null) root._journal.declarationChanged();
+	}
+	
+	/**
+	 * Get a stream of all elements in this document in document order.
+	 * @return
+	 * @see Element#descendants()
+	 */
+	public Stream<Element> descendants() {
+		return root.descendants();
+	}
+	
+	/**
+	 * Walk all elements in this document depth first, in document order.
+	 * @param visitor
+	 * @return false if the visitor terminated the walk, otherwise true.
+	 * @see Element#visitDepthFirst(ElementVisitor)
+	 */
+	public boolean visitDepthFirst(ElementVisitor visitor) {
+		return root.walkDepthFirst(visitor, false);
+	}
+	
+	/**
+	 * Walk all elements in this document breadth first.
+	 * @param visitor
+	 * @return false if the visitor terminated the walk, otherwise true.
+	 * @see Element#visitBreadthFirst(ElementVisitor)
+	 */
+	public boolean visitBreadthFirst(ElementVisitor visitor) {
+		return root.walkBreadthFirst(visitor, false);
+	}
+	
+	/**
+	 * Check if this document is structurally equal to the given object. Two documents are equal if their
+	 * declarations are the same and all their elements are equal.
+	 * @see Element#equals(Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof Document)) return false;
+		Document other = (Document) obj;
+		return declarationEquals(other) && root.equals(other.root);
+	}
+	
+	@Override
+	public int hashCode() {
+		int hash = root.hashCode();
+		hash = 31 * hash + (version == null ? 0 : version.hashCode());
+		hash = 31 * hash + (encoding == null ? 0 : encoding.hashCode());
+		return 31 * hash + (standalone ? 1 : 0);
+	}
+	
+	/**
+	 * Compare this document to another one and get the paths of all elements that differ between the two.
+	 * Paths start at the top level of the document, and a change in the XML declaration is reported as
+	 * {@code ?xml}.
+	 * @param other
+	 * @return
+	 * @see Element#diff(Element)
+	 */
+	public List<String> diff(Document other) {
+		List<String> changes = new ArrayList<String>();
+		if (!declarationEquals(other)) {
+			changes.add("?xml");
+		}
+		root.diffChildren(other.root, "", changes);
+		return changes;
+	}
+	
+	private boolean declarationEquals(Document other) {
+		return (version == null ? other.version == null : version.equals(other.version))
+				&& (encoding == null ? other.encoding == null : encoding.equals(other.encoding))
+				&& standalone == other.standalone;
+	}
+	
+	/**
+	 * Get the number of elements, attributes and texts in this document, and an estimate of the heap they take up,
+	 * including the original text of the document and the source positions if they are kept.
+	 * @return
+	 * @see XMLParser#estimate(java.io.InputStream, String)
+	 */
+	public MemoryFootprint getMemoryFootprint() {
+		return MemoryFootprint.measure(this);
+	}
+	
+	/**
+	 * Get the positions of the elements in the file this document was read from.
+	 * @return the positions, or null if the document wasn't read with {@link XMLParser#OPTION_TRACK_POSITIONS}.
+	 */
+	public SourcePositions getSourcePositions() {
+		return positions;
+	}
+	
+	void setSourcePositions(SourcePositions positions) {
+		this.positions = positions;
+	}
+	
+	/**
+	 * Get the original text this document was read from, if it was kept.
+	 */
+	String getSource() {
+		return source;
+	}
+	
+	/**
+	 * Keep the original text this document was read from, treating the current declaration as unchanged.
+	 */
+	void setSource(String source) {
+		this.source = source;
+		this.declarationChanged = false;
+	}
+	
+	boolean isDeclarationChanged() {
+		return declarationChanged;
 	}
 	
 	Element getDocumentElement() {
@@ -0,0 +1,537 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Keeps a document saved on disk by appending each change to a journal file, instead of writing the whole
+ * document again. The document is stored as a snapshot file, which is the document written as normal, and
+ * a journal of the changes made since. Opening a journal reads the snapshot and replays the journal on top
+ * of it. Once the journal grows larger than the snapshot, it is compacted by writing a new snapshot and
+ * starting an empty journal, so saving costs about as much as the changes themselves.
+ * <p>
+ * Changes are recorded by the elements of the document as they happen. Elements are addressed by the ids
+ * they have among their siblings, so that a change can be found again without the names of the elements
+ * having to be unique. Elements added with children of their own are recorded as XML, and their whitespace
+ * around text is lost the same way as when the document is written and read.
+ * <p>
+ * Every element of a journaled document knows the journal, so recording a change doesn't have to look for it.
+ * Elements removed from the document forget their parent and the journal, and changes to them are not recorded.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+public class DocumentJournal implements Closeable {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	
+	private static final byte HEADER = 0;
+	private static final byte ADD_CHILD = 1;
+	private static final byte REMOVE = 2;
+	private static final byte SET_TEXT = 3;
+	private static final byte ADD_ATTRIBUTE = 4;
+	private static final byte SET_NAME = 5;
+	private static final byte SET_ATTRIBUTES = 6;
+	private static final byte CLEAR_CHILDREN = 7;
+	private static final byte DECLARATION = 8;
+	
+	private final File snapshotFile;
+	private final File journalFile;
+	private final String charset;
+	private final Document document;
+	private DataOutputStream journal;
+	private long journalSize;
+	private long snapshotSize;
+	private long compactThreshold = 1 << 20;
+	private boolean closed = false;
+	
+	private final ByteArrayOutputStream recordBuffer = new ByteArrayOutputStream();
+	private final DataOutputStream record = new DataOutputStream(recordBuffer);
+	
+	/**
+	 * Open the journaled document stored in the given files, using the system's default underlying charset for
+	 * the snapshot. Files which don't exist yet are created, starting out with an empty document.
+	 * @param snapshot - The file holding the whole document.
+	 * @param journal - The file holding the changes made since the snapshot was written.
+	 * @return
+	 * @throws XMLException
+	 */
+	public static DocumentJournal open(File snapshot, File journal) throws XMLException {
+		return open(snapshot, journal, null);
+	}
+	
+	/**
+	 * Open the journaled document stored in the given files. Files which don't exist yet are created, starting
+	 * out with an empty document. If the journal has any changes in it, they are compacted into a new snapshot
+	 * straight away.
+	 * @param snapshot - The file holding the whole document.
+	 * @param journal - The file holding the changes made since the snapshot was written.
+	 * @param charset - The charset of the snapshot.
+	 * @return
+	 * @throws XMLException
+	 */
+	public static DocumentJournal open(File snapshot, File journal, String charset) throws XMLException {
+		Document document;
+		long checksum;
+		CRC32 crc = new CRC32();
+		if (snapshot.length() > 0) {
+			InputStream is = null;
+			try {
+				is = new CheckedInputStream(new FileInputStream(snapshot), crc);
+				// The snapshot is written without formatting, so everything in it is kept as it is.
+				document = XMLParser.read(is, charset, XMLParser.OPTION_PRESERVE_WHITESPACE);
+			}
+			catch (IOException e) {
+				throw new XMLException("Failed to read snapshot.", e);
+			}
+			finally {
+				closeQuietly(is);
+			}
+		}
+		else {
+			document = new Document();
+		}
+		checksum = crc.getValue();
+		
+		DocumentJournal dj = new DocumentJournal(snapshot, journal, charset, document);
+		dj.snapshotSize = snapshot.length();
+		int records = dj.replay(checksum);
+		dj.document.getDocumentElement().setJournal(dj);
+		if (records != 0) {
+			// Either changes were replayed or the journal has to be started again.
+			dj.compact();
+		}
+		return dj;
+	}
+	
+	private DocumentJournal(File snapshotFile, File journalFile, String charset, Document document) {
+		this.snapshotFile = snapshotFile;
+		this.journalFile = journalFile;
+		this.charset = charset;
+		this.document = document;
+	}
+	
+	/**
+	 * Get the document kept by this journal. Changes made to it are recorded until the journal is closed.
+	 * @return
+	 */
+	public Document getDocument() {
+		return document;
+	}
+	
+	/**
+	 * Set how large the journal may grow, in bytes, before it is compacted into a new snapshot. The journal is only
+	 * compacted once it is also larger than the snapshot, so that compacting costs no more than the changes did.
+	 * @param bytes
+	 */
+	public void setCompactThreshold(long bytes) {
+		this.compactThreshold = bytes;
+	}
+	
+	/**
+	 * Get the size of the journal file in bytes.
+	 * @return
+	 */
+	public long getJournalSize() {
+		return journalSize;
+	}
+	
+	/**
+	 * Write the whole document to a new snapshot and start an empty journal. The snapshot is written to a separate
+	 * file first and then moved in place, and the journal remembers the checksum of the snapshot it belongs to,
+	 * so a journal left over from an interrupted compaction is never replayed on top of the new snapshot.
+	 * @throws XMLException
+	 */
+	public void compact() throws XMLException {
+		checkOpen();
+		CRC32 crc = new CRC32();
+		try {
+			File temp = new File(snapshotFile.getPath() + ".tmp");
+			OutputStream os = new CheckedOutputStream(new FileOutputStream(temp), crc);
+			XMLParser.write(document, os, charset, XMLParser.OPTION_EXACT);
+			move(temp, snapshotFile);
+			snapshotSize = snapshotFile.length();
+			// Elements are numbered in document order when the snapshot is read, so number them the same way now.
+			document.getDocumentElement().renumber();
+			startJournal(crc.getValue());
+		}
+		catch (IOException e) {
+			throw new XMLException("Failed to compact journal.", e);
+		}
+	}
+	
+	/**
+	 * Stop recording changes and close the journal file. The document can still be used, but changes made to it
+	 * from now on are not saved.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) return;
+		closed = true;
+		document.getDocumentElement().setJournal(null);
+		if (journal != null) journal.close();
+	}
+	
+	private void checkOpen() {
+		if (closed) throw new IllegalStateException("Journal is closed.");
+	}
+	
+	/**
+	 * Start a new, empty journal for the snapshot with the given checksum, replacing the current one.
+	 */
+	private void startJournal(long checksum) throws IOException {
+		if (journal != null) journal.close();
+		File temp = new File(journalFile.getPath() + ".tmp");
+		DataOutputStream dos = new DataOutputStream(new FileOutputStream(temp));
+		try {
+			dos.writeInt(9);
+			dos.writeByte(HEADER);
+			dos.writeLong(checksum);
+		}
+		finally {
+			dos.close();
+		}
+		move(temp, journalFile);
+		openJournal();
+	}
+	
+	private void openJournal() throws IOException {
+		journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+		journalSize = journalFile.length();
+	}
+	
+	private static void closeQuietly(Closeable c) {
+		try {
+			if (c != null) c.close();
+		}
+		catch (IOException e) {
+			// The file was only read, so there is nothing to lose.
+		}
+	}
+	
+	private static void move(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	/**
+	 * Apply the changes in the journal file to the document, if the journal belongs to the snapshot with the given
+	 * checksum. A record cut short at the end of the file, as left by a crash while writing it, is ignored.
+	 * @return zero if the journal was opened for more changes, or anything else if it has to be compacted.
+	 */
+	private int replay(long checksum) throws XMLException {
+		if (!journalFile.exists()) return -1;
+		int records = 0;
+		boolean complete = true;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+			byte[] buffer = new byte[256];
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				}
+				catch (EOFException e) {
+					break;
+				}
+				if (length < 1) {
+					complete = false;
+					break;
+				}
+				if (buffer.length < length) buffer = new byte[Math.max(length, buffer.length * 2)];
+				try {
+					in.readFully(buffer, 0, length);
+				}
+				catch (EOFException e) {
+					complete = false;
+					break;
+				}
+				DataInputStream data = new DataInputStream(new ByteArrayInputStream(buffer, 0, length));
+				if (records == 0) {
+					// The first record says which snapshot the journal belongs to.
+					if (data.readByte() != HEADER || data.readLong() != checksum) {
+						return -1;
+					}
+				}
+				else {
+					apply(data);
+				}
+				records++;
+			}
+		}
+		catch (IOException e) {
+			throw new XMLException("Failed to read journal.", e);
+		}
+		finally {
+			closeQuietly(in);
+		}
+		if (records == 0) return -1;
+		// The record cut short is dropped from the file by compacting.
+		if (!complete) return records;
+		if (records > 1) return records - 1;
+		try {
+			openJournal();
+		}
+		catch (IOException e) {
+			throw new XMLException("Failed to open journal.", e);
+		}
+		return 0;
+	}
+	
+	/**
+	 * Apply a single change from the journal to the document.
+	 */
+	private void apply(DataInputStream data) throws IOException, XMLException {
+		byte op = data.readByte();
+		if (op == DECLARATION) {
+			document.setVersion(readString(data));
+			document.setEncoding(readString(data));
+			document.setStandalone(data.readBoolean());
+			return;
+		}
+		Element e = resolve(data);
+		switch (op) {
+		case ADD_CHILD:
+			e.addChild(XMLParser.parseElement(readString(data)));
+			break;
+		case REMOVE:
+			e.remove();
+			break;
+		case SET_TEXT:
+			e.setText(readString(data));
+			break;
+		case ADD_ATTRIBUTE:
+			e.addAttribute(readString(data), readString(data));
+			break;
+		case SET_NAME:
+			e.setName(readString(data));
+			break;
+		case SET_ATTRIBUTES:
+			int count = data.readInt();
+			Map<String, String> attributes = new HashMap<String, String>();
+			for (int i = 0; i < count; i++) {
+				attributes.put(readString(data), readString(data));
+			}
+			e.setAttributes(attributes);
+			break;
+		case CLEAR_CHILDREN:
+			e.setChildren(new HashMap<Integer, Element>());
+			break;
+		default:
+			throw new XMLException("Unknown change in journal: " + op);
+		}
+	}
+	
+	/**
+	 * Find the element addressed by the path of ids at the start of a change.
+	 */
+	private Element resolve(DataInputStream data) throws IOException, XMLException {
+		Element e = document.getDocumentElement();
+		int length = data.readInt();
+		for (int i = 0; i < length; i++) {
+			e = e.getChildMap().get(data.readInt());
+			if (e == null) throw new XMLException("Journal refers to an element which doesn't exist.");
+		}
+		return e;
+	}
+	
+	// The methods below are called by elements of the document as they change.
+	
+	void added(Element child) {
+		// Elements added with children of their own are written as XML, and get numbered the same way as when it's read.
+		child.renumber();
+		try {
+			begin(ADD_CHILD, child.getParent());
+			writeString(XMLParser.toXML(child));
+			end();
+		}
+		catch (XMLException e) {
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Record that the given element is about to be removed. This is recorded while the element can still be found.
+	 */
+	void removing(Element element) {
+		begin(REMOVE, element);
+		append();
+	}
+	
+	void textChanged(Element element) {
+		begin(SET_TEXT, element);
+		writeString(element.getText());
+		end();
+	}
+	
+	void attributeAdded(Element element, String name, String value) {
+		begin(ADD_ATTRIBUTE, element);
+		writeString(name);
+		writeString(value);
+		end();
+	}
+	
+	void renamed(Element element) {
+		begin(SET_NAME, element);
+		writeString(element.getName());
+		end();
+	}
+	
+	void attributesChanged(Element element) {
+		Map<String, String> attributes = element.getAttributes();
+		begin(SET_ATTRIBUTES, element);
+		try {
+			record.writeInt(attributes.size());
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		for (Map.Entry<String, String> entry : attributes.entrySet()) {
+			writeString(entry.getKey());
+			writeString(entry.getValue());
+		}
+		end();
+	}
+	
+	/**
+	 * Record that all children of the given element are about to be removed. The new children are recorded as they are added.
+	 */
+	void clearingChildren(Element element) {
+		begin(CLEAR_CHILDREN, element);
+		append();
+	}
+	
+	void declarationChanged() {
+		recordBuffer.reset();
+		try {
+			record.writeByte(DECLARATION);
+			writeString(document.getVersion());
+			writeString(document.getEncoding());
+			record.writeBoolean(document.getStandalone());
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		end();
+	}
+	
+	private void begin(byte op, Element element) {
+		checkOpen();
+		recordBuffer.reset();
+		List<Integer> path = new ArrayList<Integer>();
+		for (Element e = element; e.getParent() != null; e = e.getParent()) {
+			path.add(e._id);
+		}
+		try {
+			record.writeByte(op);
+			record.writeInt(path.size());
+			for (int i = path.size() - 1; i >= 0; i--) {
+				record.writeInt(path.get(i));
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Append the record being built to the journal, and compact the journal if it has grown large enough.
+	 */
+	private void end() {
+		append();
+		if (journalSize > compactThreshold && journalSize > snapshotSize) {
+			try {
+				compact();
+			}
+			catch (XMLException e) {
+				throw new IllegalStateException(e.getMessage(), e);
+			}
+		}
+	}
+	
+	/**
+	 * Append the record being built to the journal. Changes recorded before they are made must not compact the
+	 * journal here, or the snapshot would be written without them.
+	 */
+	private void append() {
+		try {
+			journal.writeInt(recordBuffer.size());
+			recordBuffer.writeTo(journal);
+			journal.flush();
+			journalSize += 4 + recordBuffer.size();
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Failed to write journal.", e);
+		}
+	}
+	
+	private void writeString(String s) {
+		try {
+			if (s == null) {
+				record.writeInt(-1);
+				return;
+			}
+			byte[] bytes = s.getBytes(UTF_8);
+			record.writeInt(bytes.length);
+			record.write(bytes);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private static String readString(DataInputStream data) throws IOException {
+		int length = data.readInt();
+		if (length < 0) return null;
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return new String(bytes, UTF_8);
+	}
+	
+}
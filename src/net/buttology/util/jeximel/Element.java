@@ -18,10 +18,15 @@
  */
 package net.buttology.util.jeximel;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * This class represents an element in the XML tree hierarchy. An element can have a series of attributes,
@@ -31,13 +36,30 @@ import java.util.Map;
  */
 public class Element {
 	
-	private int _id = -1;
+	/** Key of this element in the children of its parent. */
+	int _id = -1;
 	private boolean _debug = XMLParser.debug;
 	private String name;
 	private String text = "";
 	private Element parent;
 	private Map<Integer, Element> children;
 	private Map<String, String> attributes;
+	private long _hash;
+	private boolean _hashValid = false;
+	
+	/** Where this element starts and ends in the original text of the document, or -1 if it wasn't read from one. */
+	int _sourceStart = -1;
+	int _sourceEnd = -1;
+	/** Index of this element in the {@link SourcePositions} of its document, or -1 if its position isn't known. */
+	int _position = -1;
+	/** Whether this element has been changed since it was read. */
+	boolean _modified = false;
+	/** Whether the text of this element has been set since it was read. */
+	boolean _textModified = false;
+	/** Whether this element or any of its descendants have been changed since it was read. */
+	boolean _dirty = false;
+	/** The journal recording changes to the document this element is in, or null if the document isn't journaled. */
+	DocumentJournal _journal;
 	
 	/**
 	 * Create a new, orphaned element with the given name.
@@ -79,7 +101,11 @@ public class Element {
 			child._id++;
 		}
 		children.put(child._id, child);
+		child.parent = this;
+		changed();
 		debug("Adding '%s' [ID: %d] to '%s'", child.name, child._id, this.name);
+		if (child._journal != _journal) child.setJournal(_journal);
+		if (_journal != null) _journal.added(child);
 		return child;
 	}
 	
@@ -182,6 +208,14 @@ public class Element {
 		return e;
 	}
 	
+	/**
+	 * Get the number of child elements under this element.
+	 * @return
+	 */
+	public int getChildCount() {
+		return children.size();
+	}
+	
 	/**
 	 * Check if this element has any children.
 	 * @return
@@ -197,6 +231,8 @@ public class Element {
 	 */
 	public void addAttribute(String name, String value) {
 		attributes.put(name, value);
+		changed();
+		if (_journal != null) _journal.attributeAdded(this, name, value);
 	}
 	
 	/**
@@ -235,6 +271,8 @@ public class Element {
 	 */
 	public void setName(String name) {
 		this.name = name;
+		changed();
+		if (_journal != null) _journal.renamed(this);
 	}
 
 	/**
@@ -259,6 +297,9 @@ public class Element {
 	 */
 	public void setText(String value) {
 		this.text = value;
+		_textModified = true;
+		changed();
+		if (_journal != null) _journal.textChanged(this);
 	}
 
 	/**
@@ -275,7 +316,7 @@ public class Element {
 	 */
 	public void setParent(Element parent) {
 		if (this.parent != null) {
-			this.parent.children.remove(this._id);
+			leave();
 		}
 		this._id = parent.children.size();
 		while (parent.children.containsKey(_id)) {
@@ -300,7 +341,22 @@ public class Element {
 	 * @param children
 	 */
 	public void setChildren(Map<Integer, Element> children) {
-		this.children = children;
+		if (_journal == null) {
+			this.children = children;
+			changed();
+			return;
+		}
+		// Journaled children are added one by one, so that they are numbered the same way when the journal is replayed.
+		_journal.clearingChildren(this);
+		for (Element child : this.children.values()) {
+			child.parent = null;
+			child.setJournal(null);
+		}
+		this.children = new HashMap<Integer, Element>();
+		changed();
+		for (Element child : children.values()) {
+			addChild(child);
+		}
 	}
 
 	/**
@@ -325,13 +381,35 @@ public class Element {
 	 */
 	public void setAttributes(Map<String, String> attributes) {
 		this.attributes = attributes;
+		changed();
+		if (_journal != null) _journal.attributesChanged(this);
 	}
 	
 	/**
-	 * Remove this element from the parent.
+	 * Remove this element from the parent and forget about the parent.
 	 */
 	public void remove() {
-		this.parent.children.remove(_id);
+		leave();
+	}
+	
+	/**
+	 * Remove this element from the parent and forget about the parent, if it has one.
+	 */
+	void detach() {
+		if (parent != null) {
+			leave();
+		}
+	}
+	
+	/**
+	 * Take this element out of the tree it's in. Once out, it is no longer part of a journaled document either.
+	 */
+	private void leave() {
+		if (_journal != null) _journal.removing(this);
+		parent.children.remove(_id);
+		parent.changed();
+		parent = null;
+		if (_journal != null) setJournal(null);
 	}
 	
 	/**
@@ -339,8 +417,9 @@ public class Element {
 	 * @param name
 	 */
 	public void removeChild(String name) {
-		for (Element e : children.values()) {
-			if (e.getName().equals(name)) children.remove(e._id);
+		// Each removal is journaled separately, and may compact the journal and renumber the children on the way.
+		for (Element e : getChildren(name)) {
+			e.remove();
 		}
 	}
 	
@@ -349,16 +428,108 @@ public class Element {
 	 * @return
 	 */
 	public String printAncestry() {
+		List<Element> ancestry = new ArrayList<Element>();
+		for (Element e = this; e != null; e = e.parent) {
+			ancestry.add(e);
+		}
 		StringBuilder sb = new StringBuilder();
-		Element parent = this.parent;
-		sb.append(name);
-		while (parent != null) {
-			sb.insert(0, parent.getName() + " -> ");
-			parent = parent.getParent();
+		for (int i = ancestry.size() - 1; i > 0; i--) {
+			sb.append(ancestry.get(i).name).append(" -> ");
 		}
+		sb.append(name);
 		return sb.toString();
 	}
 	
+	/**
+	 * Get a stream of all descendants of this element in document order, not including this element.
+	 * The stream can be made parallel, in which case the tree is split up between threads without
+	 * copying it. The tree should not be changed while the stream is in use.
+	 * @return
+	 */
+	public Stream<Element> descendants() {
+		return StreamSupport.stream(new DescendantSpliterator(this), false);
+	}
+	
+	/**
+	 * Walk this element and all its descendants depth first, in document order, visiting each element
+	 * before its children.
+	 * @param visitor
+	 * @return false if the visitor terminated the walk, otherwise true.
+	 */
+	public boolean visitDepthFirst(ElementVisitor visitor) {
+		return walkDepthFirst(visitor, true);
+	}
+	
+	/**
+	 * Walk this element and all its descendants breadth first, visiting all elements at one level
+	 * before going on to the next.
+	 * @param visitor
+	 * @return false if the visitor terminated the walk, otherwise true.
+	 */
+	public boolean visitBreadthFirst(ElementVisitor visitor) {
+		return walkBreadthFirst(visitor, true);
+	}
+	
+	/**
+	 * Get the number of elements, attributes and texts in this element and everything within it, and an estimate
+	 * of the heap they take up.
+	 * @return
+	 */
+	public MemoryFootprint getMemoryFootprint() {
+		return MemoryFootprint.measure(this);
+	}
+	
+	/**
+	 * Walk the tree depth first, keeping an iterator for each level instead of recursing.
+	 * @param self - Whether to visit this element, or only its descendants.
+	 */
+	boolean walkDepthFirst(ElementVisitor visitor, boolean self) {
+		if (self) {
+			ElementVisitor.Result result = visitor.visit(this);
+			if (result == ElementVisitor.Result.TERMINATE) return false;
+			if (result == ElementVisitor.Result.SKIP_SUBTREE) return true;
+		}
+		Deque<Iterator<Element>> stack = new ArrayDeque<Iterator<Element>>();
+		stack.push(children.values().iterator());
+		while (!stack.isEmpty()) {
+			Iterator<Element> it = stack.peek();
+			if (!it.hasNext()) {
+				stack.pop();
+				continue;
+			}
+			Element e = it.next();
+			ElementVisitor.Result result = visitor.visit(e);
+			if (result == ElementVisitor.Result.TERMINATE) return false;
+			if (result != ElementVisitor.Result.SKIP_SUBTREE && !e.children.isEmpty()) {
+				stack.push(e.children.values().iterator());
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Walk the tree breadth first.
+	 * @param self - Whether to visit this element, or only its descendants.
+	 */
+	boolean walkBreadthFirst(ElementVisitor visitor, boolean self) {
+		Deque<Element> queue = new ArrayDeque<Element>();
+		if (self) {
+			queue.add(this);
+		}
+		else {
+			queue.addAll(children.values());
+		}
+		while (!queue.isEmpty()) {
+			Element e = queue.poll();
+			ElementVisitor.Result result = visitor.visit(e);
+			if (result == ElementVisitor.Result.TERMINATE) return false;
+			if (result != ElementVisitor.Result.SKIP_SUBTREE) {
+				queue.addAll(e.children.values());
+			}
+		}
+		return true;
+	}
+	
 	/**
 	 * Print a human-readable representation of this element and its contents. All attributes are listed
 	 * within parenthesis and all child element names are listed within curly brackets.
@@ -378,6 +549,316 @@ public class Element {
 		return output;
 	}
 	
+	/**
+	 * Check if this element is structurally equal to the given object. Two elements are equal if they have
+	 * the same name, text and attributes, and their children are equal and in the same order. The parent is
+	 * not taken into account. Subtrees with different hashes are rejected without being compared.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) return true;
+		if (!(obj instanceof Element)) return false;
+		Element other = (Element) obj;
+		if (subtreeHash() != other.subtreeHash()) return false;
+		// Compare pairs of elements off a stack rather than recursing, so deep trees can't overflow the call stack.
+		Deque<Element> mine = new ArrayDeque<Element>();
+		Deque<Element> theirs = new ArrayDeque<Element>();
+		mine.push(this);
+		theirs.push(other);
+		while (!mine.isEmpty()) {
+			Element a = mine.pop();
+			Element b = theirs.pop();
+			if (a == b) continue;
+			if (a.subtreeHash() != b.subtreeHash()) return false;
+			if (!a.equalsShallow(b) || a.children.size() != b.children.size()) return false;
+			mine.addAll(a.children.values());
+			theirs.addAll(b.children.values());
+		}
+		return true;
+	}
+	
+	/**
+	 * Get a hash code for the structure of this element and everything within it. The hash is cached until
+	 * this element or one of its descendants is changed, so elements should not be changed while in a hash
+	 * based collection.
+	 */
+	@Override
+	public int hashCode() {
+		long hash = subtreeHash();
+		return (int) (hash ^ (hash >>> 32));
+	}
+	
+	/**
+	 * Compare this element to another one and get the paths of all elements that differ between the two.
+	 * An element is reported if its name, text or attributes have changed, or if it only exists in one of the
+	 * elements. Children are matched by their position. Paths are element names separated by a slash, starting
+	 * with the name of this element, and elements with siblings of the same name get their 1-based position
+	 * among them in brackets, e.g. {@code Root/Record[3]/Name}. Subtrees with equal hashes are skipped without
+	 * being looked into.
+	 * @param other
+	 * @return
+	 */
+	public List<String> diff(Element other) {
+		List<String> changes = new ArrayList<String>();
+		if (!equalsShallow(other)) {
+			changes.add(name);
+		}
+		diffChildren(other, name, changes);
+		return changes;
+	}
+	
+	/**
+	 * Find the changed paths between the children of this element and the children of the given one. Pairs of
+	 * children that differ are looked into with an explicit stack, in the same order as a recursive walk would.
+	 */
+	void diffChildren(Element other, String path, List<String> changes) {
+		if (subtreeHash() == other.subtreeHash()) return;
+		Deque<DiffFrame> stack = new ArrayDeque<DiffFrame>();
+		stack.push(new DiffFrame(null, path, this, other));
+		while (!stack.isEmpty()) {
+			DiffFrame frame = stack.peek();
+			int i = frame.index++;
+			if (i < frame.common) {
+				Element a = frame.mine[i];
+				Element b = frame.theirs[i];
+				if (a.subtreeHash() == b.subtreeHash()) continue;
+				if (!a.name.equals(b.name)) {
+					changes.add(frame.path(frame.mineNames[i]));
+					changes.add(frame.path(frame.theirNames[i]));
+					continue;
+				}
+				if (!a.equalsShallow(b)) {
+					changes.add(frame.path(frame.mineNames[i]));
+				}
+				stack.push(new DiffFrame(frame, frame.mineNames[i], a, b));
+				continue;
+			}
+			for (int j = frame.common; j < frame.mine.length; j++) {
+				changes.add(frame.path(frame.mineNames[j]));
+			}
+			for (int j = frame.common; j < frame.theirs.length; j++) {
+				changes.add(frame.path(frame.theirNames[j]));
+			}
+			stack.pop();
+		}
+	}
+	
+	/**
+	 * The children of a pair of elements being compared, with the index of the next pair of children to compare.
+	 * Only the last step of the path is kept in each frame, so that deep trees don't build a long path for every
+	 * level, and full paths are only put together for the changes found.
+	 */
+	private static class DiffFrame {
+		
+		final DiffFrame parent;
+		final String name;
+		final Element[] mine;
+		final Element[] theirs;
+		final String[] mineNames;
+		final String[] theirNames;
+		final int common;
+		int index = 0;
+		
+		DiffFrame(DiffFrame parent, String name, Element a, Element b) {
+			this.parent = parent;
+			this.name = name;
+			mine = a.getChildren();
+			theirs = b.getChildren();
+			mineNames = childNames(mine);
+			theirNames = childNames(theirs);
+			common = Math.min(mine.length, theirs.length);
+		}
+		
+		/**
+		 * Get the full path of the child with the given name.
+		 */
+		String path(String child) {
+			List<String> names = new ArrayList<String>();
+			for (DiffFrame f = this; f != null; f = f.parent) {
+				names.add(f.name);
+			}
+			StringBuilder sb = new StringBuilder();
+			for (int i = names.size() - 1; i >= 0; i--) {
+				String name = names.get(i);
+				if (!name.isEmpty()) sb.append(name).append('/');
+			}
+			return sb.append(child).toString();
+		}
+	}
+	
+	/**
+	 * Get the names of the given siblings as used in paths, with the position among siblings of the same name added where needed.
+	 */
+	private static String[] childNames(Element[] children) {
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (Element e : children) {
+			Integer count = counts.get(e.name);
+			counts.put(e.name, count == null ? 1 : count + 1);
+		}
+		Map<String, Integer> seen = new HashMap<String, Integer>();
+		String[] names = new String[children.length];
+		for (int i = 0; i < children.length; i++) {
+			String name = children[i].name;
+			if (counts.get(name) > 1) {
+				Integer index = seen.get(name);
+				index = index == null ? 1 : index + 1;
+				seen.put(name, index);
+				names[i] = name + "[" + index + "]";
+			}
+			else {
+				names[i] = name;
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * Compare the name, text and attributes of this element to the given one, but not the children.
+	 */
+	private boolean equalsShallow(Element other) {
+		return equalsString(name, other.name)
+				&& equalsString(text, other.text)
+				&& attributes.equals(other.attributes);
+	}
+	
+	private static boolean equalsString(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+	
+	/**
+	 * Get the 64 bit hash of this element and everything within it, computing it again if anything has changed.
+	 */
+	long subtreeHash() {
+		if (_hashValid) return _hash;
+		// Hash children before their parents off a stack rather than recursing, so deep trees can't overflow the call stack.
+		Deque<Element> stack = new ArrayDeque<Element>();
+		stack.push(this);
+		while (!stack.isEmpty()) {
+			Element e = stack.peek();
+			boolean ready = true;
+			for (Element child : e.children.values()) {
+				if (!child._hashValid) {
+					stack.push(child);
+					ready = false;
+				}
+			}
+			if (ready) {
+				stack.pop();
+				e.computeHash();
+			}
+		}
+		return _hash;
+	}
+	
+	/**
+	 * Compute the hash of this element, given that all its children have valid hashes.
+	 */
+	private void computeHash() {
+		long hash = mix(hashString(name), hashString(text));
+		long attributeHash = 0;
+		for (Map.Entry<String, String> entry : attributes.entrySet()) {
+			// Added up so that the order of the attributes doesn't matter.
+			attributeHash += mix(hashString(entry.getKey()), hashString(entry.getValue()));
+		}
+		hash = mix(hash, attributeHash);
+		for (Element child : children.values()) {
+			hash = mix(hash, child._hash);
+		}
+		_hash = hash;
+		_hashValid = true;
+	}
+	
+	private static long hashString(String s) {
+		if (s == null) return 0;
+		// 64 bit FNV-1a
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			hash ^= s.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+	
+	private static long mix(long hash, long value) {
+		hash = (hash ^ value) * 0x9e3779b97f4a7c15L;
+		return hash ^ (hash >>> 32);
+	}
+	
+	/**
+	 * Mark this element as changed, which clears the cached hashes of it and its ancestors and marks them as dirty.
+	 * A valid hash on an element means all its descendants have valid hashes too, and a clean element means all
+	 * its descendants are clean, so each walk stops at the first ancestor that is already invalid or dirty.
+	 */
+	private void changed() {
+		Element e = this;
+		while (e != null && e._hashValid) {
+			e._hashValid = false;
+			e = e.parent;
+		}
+		_modified = true;
+		e = this;
+		while (e != null && !e._dirty) {
+			e._dirty = true;
+			e = e.parent;
+		}
+	}
+	
+	/**
+	 * Set the journal recording changes to this element and everything within it.
+	 */
+	void setJournal(DocumentJournal journal) {
+		List<Element> stack = new ArrayList<Element>();
+		stack.add(this);
+		while (!stack.isEmpty()) {
+			Element e = stack.remove(stack.size() - 1);
+			e._journal = journal;
+			stack.addAll(e.children.values());
+		}
+	}
+	
+	/**
+	 * Number the children of this element and all its descendants from zero in the order they are in, the same way
+	 * they are numbered when read from a document.
+	 */
+	void renumber() {
+		List<Element> stack = new ArrayList<Element>();
+		stack.add(this);
+		while (!stack.isEmpty()) {
+			Element e = stack.remove(stack.size() - 1);
+			if (e.children.isEmpty()) continue;
+			Map<Integer, Element> children = new HashMap<Integer, Element>();
+			for (Element child : e.children.values()) {
+				child._id = children.size();
+				children.put(child._id, child);
+				stack.add(child);
+			}
+			e.children = children;
+		}
+	}
+	
+	Map<Integer, Element> getChildMap() {
+		return children;
+	}
+	
+	Map<String, String> getAttributeMap() {
+		return attributes;
+	}
+	
+	/**
+	 * Mark this element and all its descendants as unchanged.
+	 */
+	void markClean() {
+		List<Element> stack = new ArrayList<Element>();
+		stack.add(this);
+		while (!stack.isEmpty()) {
+			Element e = stack.remove(stack.size() - 1);
+			e._modified = false;
+			e._textModified = false;
+			e._dirty = false;
+			stack.addAll(e.children.values());
+		}
+	}
+	
 	private void debug(String msg, Object... args) {
 		if (_debug) System.out.printf("XML: " + msg + "\n", args);
 	}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+/**
+ * A filter which decides what elements are kept while parsing an XML document. Elements that are not
+ * accepted are skipped together with everything inside them, without creating any elements, attributes
+ * or text for them.
+ * @version 1.0.0
+ * @author Mudbill
+ * @see PathFilter
+ */
+public interface ElementFilter {
+
+	/**
+	 * Check if the element at the given path should be kept. The path consists of the element names from
+	 * the top level of the document down to the element, separated by a slash, e.g. {@code Config/Database}.
+	 * @param path
+	 * @return
+	 */
+	boolean accept(String path);
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+/**
+ * A visitor called for each element when walking a tree of elements. The result of each visit decides how
+ * the walk goes on.
+ * @version 1.0.0
+ * @author Mudbill
+ * @see Element#visitDepthFirst(ElementVisitor)
+ * @see Element#visitBreadthFirst(ElementVisitor)
+ */
+public interface ElementVisitor {
+
+	/**
+	 * What to do after visiting an element.
+	 */
+	enum Result {
+		/** Go on to the children of the element, and then the rest of the tree. */
+		CONTINUE,
+		/** Go on with the rest of the tree, without visiting the children of the element. */
+		SKIP_SUBTREE,
+		/** Stop the walk. */
+		TERMINATE
+	}
+	
+	/**
+	 * Visit the given element.
+	 * @param element
+	 * @return what to do next.
+	 */
+	Result visit(Element element);
+
+}
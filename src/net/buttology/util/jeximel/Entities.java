@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+/**
+ * Escapes and unescapes text for XML in a single pass. The five predefined entities are supported, along
+ * with decimal and hexadecimal character references like {@code &#65;} and {@code &#x41;}. Anything that
+ * isn't a valid reference is left as it is. When there is nothing to change, the original text is returned
+ * without being copied.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+final class Entities {
+
+	/** The longest reference there is, which is a hexadecimal one with 8 digits. */
+	private static final int MAX_REFERENCE_LENGTH = 12;
+
+	private Entities() {}
+
+	/**
+	 * Replace all entities and character references in the given text.
+	 * @param text
+	 * @return
+	 */
+	static String decode(String text) {
+		return decode(text, 0, text.length());
+	}
+
+	/**
+	 * Replace all entities and character references between the given indices of the given text.
+	 * @param text
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	static String decode(String text, int start, int end) {
+		int amp = indexOf(text, '&', start, end);
+		if (amp == -1) {
+			return start == 0 && end == text.length() ? text : text.substring(start, end);
+		}
+
+		StringBuilder sb = new StringBuilder(end - start);
+		int pos = start;
+		while (amp != -1) {
+			sb.append(text, pos, amp);
+			pos = amp + 1;
+			// References are short, so don't look far for the end of one.
+			int semicolon = indexOf(text, ';', amp, Math.min(end, amp + MAX_REFERENCE_LENGTH));
+			if (semicolon != -1) {
+				int codePoint = reference(text, amp + 1, semicolon);
+				if (codePoint != -1) {
+					sb.appendCodePoint(codePoint);
+					pos = semicolon + 1;
+				}
+				else {
+					sb.append('&');
+				}
+			}
+			else {
+				sb.append('&');
+			}
+			amp = indexOf(text, '&', pos, end);
+		}
+		sb.append(text, pos, end);
+		return sb.toString();
+	}
+
+	/**
+	 * Find the given character between the given indices, without looking past the end.
+	 */
+	static int indexOf(String text, char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (text.charAt(i) == c) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the character the reference between the given indices stands for, or -1 if it isn't a valid reference.
+	 */
+	private static int reference(String text, int start, int end) {
+		int length = end - start;
+		if (length < 2) return -1;
+		if (text.charAt(start) == '#') {
+			int radix = 10;
+			int pos = start + 1;
+			if (text.charAt(pos) == 'x' || text.charAt(pos) == 'X') {
+				radix = 16;
+				pos++;
+			}
+			if (pos == end || end - pos > 8) return -1;
+			int codePoint = 0;
+			for (; pos < end; pos++) {
+				int digit = Character.digit(text.charAt(pos), radix);
+				if (digit == -1) return -1;
+				codePoint = codePoint * radix + digit;
+			}
+			if (codePoint == 0 || !Character.isValidCodePoint(codePoint)) return -1;
+			return codePoint;
+		}
+		switch (length) {
+		case 2:
+			if (text.startsWith("lt", start)) return '<';
+			if (text.startsWith("gt", start)) return '>';
+			break;
+		case 3:
+			if (text.startsWith("amp", start)) return '&';
+			break;
+		case 4:
+			if (text.startsWith("quot", start)) return '"';
+			if (text.startsWith("apos", start)) return '\'';
+			break;
+		}
+		return -1;
+	}
+
+	/**
+	 * Escape the given text for use in XML. Ampersands and angle brackets are always escaped, and double quotes
+	 * are escaped as well when the text is an attribute value.
+	 * @param text
+	 * @param attribute - Whether the text is the value of an attribute.
+	 * @return
+	 */
+	static String encode(String text, boolean attribute) {
+		return encode(text, attribute, false);
+	}
+
+	/**
+	 * Escape the given text for use in XML, optionally escaping line breaks and tabs as character references as
+	 * well, so that they're kept exactly as they are when read back.
+	 * @param text
+	 * @param attribute - Whether the text is the value of an attribute.
+	 * @param whitespace - Whether to escape line breaks and tabs.
+	 * @return
+	 */
+	static String encode(String text, boolean attribute, boolean whitespace) {
+		int length = text.length();
+		int i = 0;
+		while (i < length && replacement(text.charAt(i), attribute, whitespace) == null) i++;
+		if (i == length) return text;
+
+		StringBuilder sb = new StringBuilder(length + 16);
+		sb.append(text, 0, i);
+		for (; i < length; i++) {
+			char c = text.charAt(i);
+			String replacement = replacement(c, attribute, whitespace);
+			if (replacement != null) sb.append(replacement);
+			else sb.append(c);
+		}
+		return sb.toString();
+	}
+
+	private static String replacement(char c, boolean attribute, boolean whitespace) {
+		switch (c) {
+		case '&': return "&amp;";
+		case '<': return "&lt;";
+		case '>': return "&gt;";
+		case '"': return attribute ? "&quot;" : null;
+		case '\n': return whitespace ? "&#10;" : null;
+		case '\r': return whitespace ? "&#13;" : null;
+		case '\t': return whitespace ? "&#9;" : null;
+		default: return null;
+		}
+	}
+
+}
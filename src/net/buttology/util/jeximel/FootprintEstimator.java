@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Scans an XML stream to estimate the {@link MemoryFootprint} of the document without building it. Only the
+ * structure of the tags is followed, counting the elements, attributes and text the parser would create, and
+ * how many children each element has. Names are hashed into a small table to count the distinct ones, which
+ * the parser shares between elements. Nothing is kept of the file besides the counts.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+final class FootprintEstimator {
+
+	private static final int TEXT = 0;
+	private static final int TAG = 1;
+	private static final int NAME = 2;
+	private static final int IN_TAG = 3;
+	private static final int ATTRIBUTE_NAME = 4;
+	private static final int ATTRIBUTE_VALUE = 5;
+	private static final int CLOSE_TAG = 6;
+	private static final int MARKUP = 7;
+	private static final int COMMENT = 8;
+	private static final int CDATA_START = 9;
+	private static final int CDATA = 10;
+	private static final int INSTRUCTION = 11;
+	private static final int DECLARATION = 12;
+	
+	/** The parser shares up to this many distinct names. Names beyond that are counted once per use. */
+	private static final int MAX_NAMES = 8192;
+	
+	private final MemoryFootprint footprint = new MemoryFootprint();
+	private int state = TEXT;
+	private long offset = 0;
+	private char previous = 0;
+	private char beforePrevious = 0;
+	private int skip = 0;
+	private boolean latin1 = true;
+	
+	// The element being read at each level, where level 0 is the document itself.
+	private int level = 0;
+	private int[] children = new int[64];
+	private int[] attributes = new int[64];
+	private long[] text = new long[64];
+	private boolean[] textLatin1 = new boolean[64];
+	private boolean closing = false;
+	private long recordStart;
+	private long largestRecord = 0;
+	
+	// The name or value being read.
+	private int hash;
+	private int length;
+	private boolean valueLatin1;
+	private char quote;
+	
+	// Trimmed length of the text being read, and the whitespace read since its last other character.
+	private long run = 0;
+	private int spaces = 0;
+	
+	private long[] names = new long[2 * MAX_NAMES];
+	private int nameCount = 0;
+	
+	private FootprintEstimator() {
+		textLatin1[0] = true;
+		// The element holding the top level of the document.
+		footprint.addName(5, true);
+	}
+	
+	/**
+	 * Scan the given reader to the end and estimate the footprint of the document in it.
+	 * @param reader
+	 * @return
+	 * @throws IOException
+	 */
+	static MemoryFootprint estimate(Reader reader) throws IOException {
+		FootprintEstimator estimator = new FootprintEstimator();
+		char[] buffer = new char[8192];
+		int n;
+		while ((n = reader.read(buffer, 0, buffer.length)) != -1) {
+			for (int i = 0; i < n; i++) {
+				estimator.next(buffer[i]);
+			}
+		}
+		return estimator.finish();
+	}
+	
+	private MemoryFootprint finish() {
+		while (level >= 0) {
+			close();
+		}
+		// The text is held both by the buffer it's read into and the string parsed from it.
+		footprint.setSourceSize(2 * MemoryFootprint.stringSize(offset, latin1));
+		footprint.setLargestRecordSize(largestRecord);
+		return footprint;
+	}
+	
+	private void next(char c) {
+		if (c > 0xff) latin1 = false;
+		switch (state) {
+		case TEXT:
+			if (c == '<') {
+				endText();
+				state = TAG;
+			}
+			else if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+				// Line breaks are left out of text when it's read, so they're neither text nor whitespace.
+			}
+			else if (c <= ' ') {
+				if (run > 0) spaces++;
+			}
+			else {
+				run += spaces + 1;
+				spaces = 0;
+				if (c > 0xff) textLatin1[level] = false;
+			}
+			break;
+		case TAG:
+			if (c == '/') state = CLOSE_TAG;
+			else if (c == '!') state = MARKUP;
+			else if (c == '?') state = INSTRUCTION;
+			else {
+				open();
+				startName();
+				state = NAME;
+				name(c);
+			}
+			break;
+		case NAME:
+			if (c <= ' ' || c == '/' || c == '>') {
+				endName();
+				state = IN_TAG;
+				inTag(c);
+			}
+			else name(c);
+			break;
+		case IN_TAG:
+			inTag(c);
+			break;
+		case ATTRIBUTE_NAME:
+			if (c <= ' ' || c == '=' || c == '/' || c == '>') {
+				endName();
+				state = IN_TAG;
+				inTag(c);
+			}
+			else name(c);
+			break;
+		case ATTRIBUTE_VALUE:
+			if (c == quote) {
+				footprint.addAttributeValue(length, valueLatin1);
+				state = IN_TAG;
+			}
+			else {
+				length++;
+				if (c > 0xff) valueLatin1 = false;
+			}
+			break;
+		case CLOSE_TAG:
+			if (c == '>') {
+				// A closing tag without an opening tag is ignored by the parser as well.
+				if (level > 0) close();
+				state = TEXT;
+			}
+			break;
+		case MARKUP:
+			if (c == '-') state = COMMENT;
+			else if (c == '[') {
+				state = CDATA_START;
+				skip = "CDATA[".length();
+			}
+			else {
+				state = DECLARATION;
+				skip = 0;
+			}
+			break;
+		case COMMENT:
+			if (c == '>' && previous == '-' && beforePrevious == '-') state = TEXT;
+			break;
+		case CDATA_START:
+			if (--skip == 0) state = CDATA;
+			break;
+		case CDATA:
+			if (c == '>' && previous == ']' && beforePrevious == ']') {
+				// The brackets were counted as text before the end of the section was seen.
+				text[level] -= 2;
+				state = TEXT;
+			}
+			else {
+				text[level]++;
+				if (c > 0xff) textLatin1[level] = false;
+			}
+			break;
+		case INSTRUCTION:
+			if (c == '>' && previous == '?') state = TEXT;
+			break;
+		case DECLARATION:
+			// Declarations may have an internal subset in brackets, with tags of its own.
+			if (c == '[') skip++;
+			else if (c == ']') skip--;
+			else if (c == '>' && skip == 0) state = TEXT;
+			break;
+		}
+		beforePrevious = previous;
+		previous = c;
+		offset++;
+	}
+	
+	private void inTag(char c) {
+		if (c == '/') closing = true;
+		else if (c == '>') {
+			if (closing) close();
+			closing = false;
+			state = TEXT;
+		}
+		else if (c == '"' || c == '\'') {
+			quote = c;
+			length = 0;
+			valueLatin1 = true;
+			state = ATTRIBUTE_VALUE;
+		}
+		else if (c > ' ' && c != '=') {
+			attributes[level]++;
+			startName();
+			state = ATTRIBUTE_NAME;
+			name(c);
+		}
+	}
+	
+	private void open() {
+		children[level]++;
+		level++;
+		if (level == children.length) {
+			int size = level * 2;
+			children = Arrays.copyOf(children, size);
+			attributes = Arrays.copyOf(attributes, size);
+			text = Arrays.copyOf(text, size);
+			textLatin1 = Arrays.copyOf(textLatin1, size);
+		}
+		children[level] = 0;
+		attributes[level] = 0;
+		text[level] = 0;
+		textLatin1[level] = true;
+		// Records are the elements one level below the top, starting at the '<' before their name.
+		if (level == 2) recordStart = offset - 1;
+	}
+	
+	private void close() {
+		int count = children[level];
+		footprint.addElement(count, attributes[level]);
+		if (count > MemoryFootprint.INTEGER_CACHE + 1) {
+			footprint.addBoxedIds(count - MemoryFootprint.INTEGER_CACHE - 1);
+		}
+		if (text[level] > 0) {
+			footprint.addText((int) Math.min(Integer.MAX_VALUE, text[level]), textLatin1[level]);
+		}
+		if (level == 2) largestRecord = Math.max(largestRecord, offset + 1 - recordStart);
+		level--;
+	}
+	
+	private void endText() {
+		if (run > 0) {
+			text[level] += run;
+			run = 0;
+		}
+		spaces = 0;
+	}
+	
+	private void startName() {
+		hash = 0;
+		length = 0;
+		valueLatin1 = true;
+	}
+	
+	private void name(char c) {
+		hash = 31 * hash + c;
+		length++;
+		if (c > 0xff) valueLatin1 = false;
+	}
+	
+	/**
+	 * Count the name just read, unless it has been seen before.
+	 */
+	private void endName() {
+		long key = ((long) hash << 32) | length;
+		int mask = names.length - 1;
+		int index = (hash ^ (hash >>> 16)) & mask;
+		long existing;
+		while ((existing = names[index]) != 0) {
+			if (existing == key) return;
+			index = (index + 1) & mask;
+		}
+		if (nameCount < MAX_NAMES) {
+			names[index] = key;
+			nameCount++;
+		}
+		footprint.addName(length, valueLatin1);
+	}
+	
+}
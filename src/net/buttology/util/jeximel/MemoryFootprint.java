@@ -0,0 +1,297 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How much memory a document or a part of it takes up, or is expected to take up once read. Footprints are
+ * taken of documents in memory with {@link Document#getMemoryFootprint()} and {@link Element#getMemoryFootprint()},
+ * and estimated for files before reading them with {@link XMLParser#estimate(java.io.InputStream, String)}.
+ * <p>
+ * Sizes are estimates of the heap the elements retain on a 64-bit JVM with compressed references, which is the
+ * default for heaps smaller than 32 GB. Names shared between elements are only counted once, the same way the
+ * parser shares them. Strings with only Latin-1 characters are counted as one byte per character.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+public final class MemoryFootprint {
+
+	/**
+	 * The ways a document can be read, from the most convenient to the least memory hungry.
+	 */
+	public enum Mode {
+		/** Read the document into a tree of {@link Element}s with {@link XMLParser#read}. */
+		TREE,
+		/** Read the document into a read-only {@link OffHeapDocument} with {@link XMLParser#readOffHeap}. */
+		OFF_HEAP,
+		/** Read the document one record at a time with {@link XMLParser#iterate} or {@link XMLParser#stream}. */
+		STREAM
+	}
+	
+	private static final int ARRAY_HEADER = 16;
+	private static final int REFERENCE = 4;
+	private static final int ELEMENT = 64;
+	private static final int HASH_MAP = 48;
+	private static final int HASH_MAP_NODE = 32;
+	private static final int INTEGER = 16;
+	private static final int STRING = 24;
+	/** Ids up to this value are boxed into cached integers, which take no memory of their own. */
+	static final int INTEGER_CACHE = 127;
+	
+	// Sizes of the records of an OffHeapDocument.
+	private static final int OFF_HEAP_NODE = 32;
+	private static final int OFF_HEAP_ATTRIBUTE = 8;
+	private static final int OFF_HEAP_STRING = 16;
+	/** Heap used for the text of the file while reading it off the heap, one chunk at a time, with a copy of a chunk. */
+	private static final long OFF_HEAP_READ = 4L * XMLParser.CHUNK_SIZE;
+	
+	private long elements = 0;
+	private long attributes = 0;
+	private long texts = 0;
+	private long textLength = 0;
+	private long names = 0;
+	private long strings = 0;
+	private long chars = 0;
+	private long retainedSize = 0;
+	private long sourceSize = 0;
+	private long largestRecordSize = -1;
+	
+	MemoryFootprint() {
+	}
+	
+	/**
+	 * Take the footprint of the given element and everything within it.
+	 */
+	static MemoryFootprint measure(Element element) {
+		MemoryFootprint footprint = new MemoryFootprint();
+		Map<String, Boolean> names = new IdentityHashMap<String, Boolean>();
+		List<Element> stack = new ArrayList<Element>();
+		stack.add(element);
+		while (!stack.isEmpty()) {
+			Element e = stack.remove(stack.size() - 1);
+			Map<String, String> attributes = e.getAttributeMap();
+			footprint.addElement(e.getChildCount(), attributes.size());
+			if (e.getParent() != null && e._id > INTEGER_CACHE) {
+				footprint.addBoxedIds(1);
+			}
+			if (names.put(e.getName(), Boolean.TRUE) == null) {
+				footprint.addName(e.getName().length(), isLatin1(e.getName()));
+			}
+			for (Map.Entry<String, String> entry : attributes.entrySet()) {
+				if (names.put(entry.getKey(), Boolean.TRUE) == null) {
+					footprint.addName(entry.getKey().length(), isLatin1(entry.getKey()));
+				}
+				footprint.addAttributeValue(entry.getValue().length(), isLatin1(entry.getValue()));
+			}
+			if (e.hasText()) {
+				footprint.addText(e.getText().length(), isLatin1(e.getText()));
+			}
+			stack.addAll(e.getChildMap().values());
+		}
+		return footprint;
+	}
+	
+	/**
+	 * Take the footprint of the given document, including the original text and source positions it keeps.
+	 */
+	static MemoryFootprint measure(Document document) {
+		MemoryFootprint footprint = measure(document.getDocumentElement());
+		String source = document.getSource();
+		if (source != null) {
+			footprint.retainedSize += stringSize(source.length(), isLatin1(source));
+		}
+		SourcePositions positions = document.getSourcePositions();
+		if (positions != null) {
+			// The line and column of each element as ints, and its byte offset as a long.
+			footprint.retainedSize += 2 * align(ARRAY_HEADER + 4L * positions.size()) + align(ARRAY_HEADER + 8L * positions.size());
+		}
+		return footprint;
+	}
+	
+	/**
+	 * Get the number of elements.
+	 * @return
+	 */
+	public long getElementCount() {
+		return elements;
+	}
+	
+	/**
+	 * Get the number of attributes of all elements together.
+	 * @return
+	 */
+	public long getAttributeCount() {
+		return attributes;
+	}
+	
+	/**
+	 * Get the number of elements with text.
+	 * @return
+	 */
+	public long getTextCount() {
+		return texts;
+	}
+	
+	/**
+	 * Get the number of characters of text in all elements together.
+	 * @return
+	 */
+	public long getTextLength() {
+		return textLength;
+	}
+	
+	/**
+	 * Get the estimated number of bytes of heap the elements retain.
+	 * @return
+	 */
+	public long getRetainedSize() {
+		return retainedSize;
+	}
+	
+	/**
+	 * Get the estimated number of bytes the same elements would take up outside the heap in an {@link OffHeapDocument}.
+	 * @return
+	 */
+	public long getOffHeapSize() {
+		return elements * OFF_HEAP_NODE + attributes * OFF_HEAP_ATTRIBUTE + strings * OFF_HEAP_STRING + 2 * chars;
+	}
+	
+	/**
+	 * Get the estimated number of bytes of heap used for the text of the file while it is being read, on top of the
+	 * elements themselves. This is zero for footprints of documents which are already in memory.
+	 * @return
+	 */
+	public long getSourceSize() {
+		return sourceSize;
+	}
+	
+	/**
+	 * Get the number of characters of the largest element one level below the top, which is the most memory
+	 * needed for a single record when streaming the file at depth 1. This is -1 for footprints of documents which
+	 * are already in memory.
+	 * @return
+	 */
+	public long getLargestRecordSize() {
+		return largestRecordSize;
+	}
+	
+	/**
+	 * Get the mode the file should be read in, given how much heap is free right now.
+	 * @return
+	 * @see #getRecommendedMode(long)
+	 */
+	public Mode getRecommendedMode() {
+		Runtime runtime = Runtime.getRuntime();
+		return getRecommendedMode(runtime.maxMemory() - runtime.totalMemory() + runtime.freeMemory());
+	}
+	
+	/**
+	 * Get the mode the file should be read in, given the number of bytes of heap free for it. A tree is used as long
+	 * as it fits in half of the free heap, leaving room for the garbage collector. Otherwise the elements are kept
+	 * off the heap, which only needs the names and a chunk of the text on the heap at a time, as long as there is
+	 * enough direct memory. Anything larger has to be streamed.
+	 * @param freeHeap - The number of bytes of heap free for reading the file.
+	 * @return
+	 */
+	public Mode getRecommendedMode(long freeHeap) {
+		long budget = freeHeap / 2;
+		if (retainedSize + sourceSize <= budget) return Mode.TREE;
+		if (OFF_HEAP_READ + names * STRING <= budget && getOffHeapSize() <= Runtime.getRuntime().maxMemory()) return Mode.OFF_HEAP;
+		return Mode.STREAM;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("%d elements, %d attributes, %d texts (%d chars), about %d bytes retained",
+				elements, attributes, texts, textLength, retainedSize);
+	}
+	
+	// The methods below add up the parts of a footprint, and are shared between measuring and estimating.
+	
+	void addElement(int children, int attributeCount) {
+		elements++;
+		attributes += attributeCount;
+		strings += attributeCount;
+		retainedSize += ELEMENT + mapSize(children) + mapSize(attributeCount);
+	}
+	
+	void addName(int length, boolean latin1) {
+		names++;
+		strings++;
+		chars += length;
+		retainedSize += stringSize(length, latin1);
+	}
+	
+	void addAttributeValue(int length, boolean latin1) {
+		chars += length;
+		retainedSize += stringSize(length, latin1);
+	}
+	
+	void addText(int length, boolean latin1) {
+		texts++;
+		strings++;
+		textLength += length;
+		chars += length;
+		retainedSize += stringSize(length, latin1);
+	}
+	
+	void addBoxedIds(long count) {
+		retainedSize += count * INTEGER;
+	}
+	
+	void setSourceSize(long bytes) {
+		this.sourceSize = bytes;
+	}
+	
+	void setLargestRecordSize(long chars) {
+		this.largestRecordSize = chars;
+	}
+	
+	/**
+	 * Get the size of a hash map with the given number of entries, created with the default capacity.
+	 */
+	private static long mapSize(int size) {
+		if (size == 0) return HASH_MAP;
+		int capacity = 16;
+		while (size > capacity * 3 / 4) {
+			capacity *= 2;
+		}
+		return HASH_MAP + align(ARRAY_HEADER + (long) REFERENCE * capacity) + (long) HASH_MAP_NODE * size;
+	}
+	
+	static long stringSize(long length, boolean latin1) {
+		return STRING + align(ARRAY_HEADER + (latin1 ? length : 2 * length));
+	}
+	
+	private static boolean isLatin1(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) > 0xff) return false;
+		}
+		return true;
+	}
+	
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+	
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A growable block of memory outside the Java heap, addressed with long offsets. The memory is allocated as
+ * direct byte buffers which start small and double in size up to a limit, so small documents only take a few
+ * pages while the total size is not limited by the 2 GB size of a single buffer. Page boundaries are multiples
+ * of the first page size, and values are only ever read and written at offsets aligned to their own size, so no
+ * value is split between two pages.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+final class OffHeapBuffer {
+
+	/** The first two pages are this size, and each page after that is twice the size of the one before. */
+	private static final int FIRST_PAGE_SHIFT = 12;
+	/** Pages stop growing at this size. */
+	private static final int MAX_PAGE_SHIFT = 30;
+	/** The address where pages stop growing. */
+	private static final long FIXED_START = 1L << (MAX_PAGE_SHIFT + 1);
+	private static final int FIXED_PAGE = MAX_PAGE_SHIFT - FIRST_PAGE_SHIFT + 2;
+	
+	/** Frees direct buffers straight away, or null if the JVM doesn't allow it. */
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+	
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+		try {
+			Class<?> type = Class.forName("sun.misc.Unsafe");
+			Field field = type.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafe = field.get(null);
+			invokeCleaner = type.getMethod("invokeCleaner", ByteBuffer.class);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			// Before Java 9, or access was denied. The garbage collector frees the buffers instead.
+			unsafe = null;
+			invokeCleaner = null;
+		}
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	private ByteBuffer[] pages = new ByteBuffer[8];
+	private int pageCount = 0;
+	private long capacity = 0;
+	private long size = 0;
+
+	/**
+	 * Reserve the given number of bytes at the end of the buffer.
+	 * @param bytes
+	 * @return the address of the reserved bytes.
+	 */
+	long allocate(long bytes) {
+		long address = size;
+		size += bytes;
+		while (capacity < size) {
+			if (pageCount == pages.length) {
+				ByteBuffer[] grown = new ByteBuffer[pages.length * 2];
+				System.arraycopy(pages, 0, grown, 0, pageCount);
+				pages = grown;
+			}
+			int pageSize = (int) (pageStart(pageCount + 1) - capacity);
+			pages[pageCount++] = ByteBuffer.allocateDirect(pageSize).order(ByteOrder.nativeOrder());
+			capacity += pageSize;
+		}
+		return address;
+	}
+
+	/**
+	 * Get the index of the page holding the given address.
+	 */
+	private static int page(long address) {
+		if (address >= FIXED_START) return FIXED_PAGE + (int) ((address - FIXED_START) >>> MAX_PAGE_SHIFT);
+		return 64 - Long.numberOfLeadingZeros(address >>> FIRST_PAGE_SHIFT);
+	}
+
+	/**
+	 * Get the address where the given page starts.
+	 */
+	private static long pageStart(int page) {
+		if (page == 0) return 0;
+		if (page >= FIXED_PAGE) return FIXED_START + ((long) (page - FIXED_PAGE) << MAX_PAGE_SHIFT);
+		return 1L << (FIRST_PAGE_SHIFT + page - 1);
+	}
+
+	/**
+	 * Get the number of bytes in use.
+	 * @return
+	 */
+	long size() {
+		return size;
+	}
+
+	/**
+	 * Get the number of bytes allocated outside the heap.
+	 * @return
+	 */
+	long capacity() {
+		return capacity;
+	}
+
+	int getInt(long address) {
+		int page = page(address);
+		return pages[page].getInt((int) (address - pageStart(page)));
+	}
+
+	void putInt(long address, int value) {
+		int page = page(address);
+		pages[page].putInt((int) (address - pageStart(page)), value);
+	}
+
+	long getLong(long address) {
+		int page = page(address);
+		return pages[page].getLong((int) (address - pageStart(page)));
+	}
+
+	void putLong(long address, long value) {
+		int page = page(address);
+		pages[page].putLong((int) (address - pageStart(page)), value);
+	}
+
+	char getChar(long address) {
+		int page = page(address);
+		return pages[page].getChar((int) (address - pageStart(page)));
+	}
+
+	void putChar(long address, char value) {
+		int page = page(address);
+		pages[page].putChar((int) (address - pageStart(page)), value);
+	}
+
+	/**
+	 * Release all pages. Where the JVM allows it the memory is freed straight away, and otherwise it is left to
+	 * the garbage collector.
+	 */
+	void free() {
+		ByteBuffer[] freed = pages;
+		int count = pageCount;
+		pages = new ByteBuffer[0];
+		pageCount = 0;
+		capacity = 0;
+		size = 0;
+		if (INVOKE_CLEANER == null) return;
+		for (int i = 0; i < count; i++) {
+			try {
+				INVOKE_CLEANER.invoke(UNSAFE, freed[i]);
+			}
+			catch (ReflectiveOperationException | RuntimeException e) {
+				// The buffer is freed by the garbage collector instead.
+			}
+		}
+	}
+
+}
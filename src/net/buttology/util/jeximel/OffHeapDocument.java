@@ -0,0 +1,507 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-only XML document whose elements are kept in memory outside the Java heap. The structure of the
+ * tree, the attributes and all text are stored in direct byte buffers, with names and strings referred to
+ * by their id in a string table. Only the table of distinct names lives on the heap. This lets very large
+ * documents be held in memory without a heap object for every element, which keeps garbage collection pauses
+ * short. Elements are accessed through small {@link Node} views which are created on demand, and can be
+ * turned into regular {@link Element}s when needed.
+ * <p>
+ * Documents are created with {@link XMLParser#readOffHeap}. Call {@link #close()} when done with a document
+ * to release its memory. Where the JVM allows it the memory is freed straight away, and otherwise once the
+ * garbage collector notices that it is no longer used.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+public class OffHeapDocument {
+
+	/** Index used for links to elements that don't exist. */
+	static final int NONE = -1;
+
+	// Each element is stored as a record of ints.
+	private static final int NODE_NAME = 0;
+	private static final int NODE_PARENT = 4;
+	private static final int NODE_FIRST_CHILD = 8;
+	private static final int NODE_LAST_CHILD = 12;
+	private static final int NODE_NEXT_SIBLING = 16;
+	private static final int NODE_TEXT = 20;
+	private static final int NODE_ATTRIB_START = 24;
+	private static final int NODE_ATTRIB_COUNT = 28;
+	private static final int NODE_SIZE = 32;
+
+	// Each attribute is a name id and a value id.
+	private static final int ATTRIB_SIZE = 8;
+	// Each string is a long offset into the character data and an int length, padded to keep the offsets aligned.
+	private static final int STRING_SIZE = 16;
+
+	private OffHeapBuffer nodes = new OffHeapBuffer();
+	private OffHeapBuffer attributes = new OffHeapBuffer();
+	private OffHeapBuffer strings = new OffHeapBuffer();
+	private OffHeapBuffer chars = new OffHeapBuffer();
+	private int nodeCount = 0;
+	private int attributeCount = 0;
+	private int stringCount = 0;
+	private Map<String, Integer> names = new HashMap<String, Integer>();
+
+	private String version;
+	private String encoding;
+	private boolean standalone = true;
+
+	/**
+	 * Creates an empty document holding only the document node.
+	 */
+	OffHeapDocument() {
+		addNode(NONE, "_ROOT");
+	}
+
+	/**
+	 * Get an element from the document.
+	 * @param name
+	 * @return
+	 */
+	public Node getChild(String name) {
+		return node(findChild(0, name));
+	}
+
+	/**
+	 * Get an array of all elements from the document.
+	 * @return
+	 */
+	public Node[] getChildren() {
+		return getChildren(0, null);
+	}
+
+	/**
+	 * Get an array of all elements from the document with the given name.
+	 * @param name
+	 * @return
+	 */
+	public Node[] getChildren(String name) {
+		return getChildren(0, name);
+	}
+
+	/**
+	 * Get the XML document version.
+	 * @return
+	 */
+	public String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Get the XML document encoding.
+	 * @return
+	 */
+	public String getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * Get the XML document stand-alone state.
+	 * @return
+	 */
+	public boolean getStandalone() {
+		return standalone;
+	}
+
+	/**
+	 * Get the number of elements in the document.
+	 * @return
+	 */
+	public int getElementCount() {
+		return nodeCount - 1;
+	}
+
+	/**
+	 * Get the number of bytes this document holds outside the heap.
+	 * @return
+	 */
+	public long getOffHeapSize() {
+		return nodes.capacity() + attributes.capacity() + strings.capacity() + chars.capacity();
+	}
+
+	/**
+	 * Copy this document into a regular document on the heap.
+	 * @return
+	 */
+	public Document toDocument() {
+		Document document = new Document();
+		if (version != null) document.setVersion(version);
+		if (encoding != null) document.setEncoding(encoding);
+		document.setStandalone(standalone);
+		for (Node child : getChildren()) {
+			document.addChild(child.toElement());
+		}
+		return document;
+	}
+
+	/**
+	 * Release the memory held by this document. The document and its nodes can't be used afterwards.
+	 */
+	public void close() {
+		nodes.free();
+		attributes.free();
+		strings.free();
+		chars.free();
+		nodeCount = 0;
+		attributeCount = 0;
+		stringCount = 0;
+		names = new HashMap<String, Integer>();
+	}
+
+	void setVersion(String version) {
+		this.version = version;
+	}
+
+	void setEncoding(String encoding) {
+		this.encoding = encoding;
+	}
+
+	void setStandalone(boolean standalone) {
+		this.standalone = standalone;
+	}
+
+	/**
+	 * Add a new element as the last child of the given parent.
+	 * @return the index of the new element.
+	 */
+	int addNode(int parent, String name) {
+		int node = nodeCount++;
+		long address = nodes.allocate(NODE_SIZE);
+		nodes.putInt(address + NODE_NAME, nameId(name));
+		nodes.putInt(address + NODE_PARENT, parent);
+		nodes.putInt(address + NODE_FIRST_CHILD, NONE);
+		nodes.putInt(address + NODE_LAST_CHILD, NONE);
+		nodes.putInt(address + NODE_NEXT_SIBLING, NONE);
+		nodes.putInt(address + NODE_TEXT, NONE);
+		nodes.putInt(address + NODE_ATTRIB_START, 0);
+		nodes.putInt(address + NODE_ATTRIB_COUNT, 0);
+		if (parent != NONE) {
+			long parentAddress = (long) parent * NODE_SIZE;
+			int last = nodes.getInt(parentAddress + NODE_LAST_CHILD);
+			if (last == NONE) nodes.putInt(parentAddress + NODE_FIRST_CHILD, node);
+			else nodes.putInt((long) last * NODE_SIZE + NODE_NEXT_SIBLING, node);
+			nodes.putInt(parentAddress + NODE_LAST_CHILD, node);
+		}
+		return node;
+	}
+
+	/**
+	 * Add an attribute to the given element. Attributes must be added right after the element, before any other
+	 * element is added. An existing attribute of the given name is overwritten.
+	 */
+	void addAttribute(int node, String name, String value) {
+		long address = (long) node * NODE_SIZE;
+		int start = nodes.getInt(address + NODE_ATTRIB_START);
+		int count = nodes.getInt(address + NODE_ATTRIB_COUNT);
+		int nameId = nameId(name);
+		int index = findAttribute(start, count, nameId);
+		if (index != NONE) {
+			attributes.putInt((long) index * ATTRIB_SIZE + 4, addString(value));
+			return;
+		}
+		if (count == 0) {
+			start = attributeCount;
+			nodes.putInt(address + NODE_ATTRIB_START, start);
+		}
+		else if (start + count != attributeCount) {
+			throw new IllegalStateException("Attributes must be added together with their element.");
+		}
+		long attribAddress = attributes.allocate(ATTRIB_SIZE);
+		attributes.putInt(attribAddress, nameId);
+		attributes.putInt(attribAddress + 4, addString(value));
+		attributeCount++;
+		nodes.putInt(address + NODE_ATTRIB_COUNT, count + 1);
+	}
+
+	void setText(int node, String text) {
+		nodes.putInt((long) node * NODE_SIZE + NODE_TEXT, addString(text));
+	}
+
+	int getParentIndex(int node) {
+		return nodes.getInt((long) node * NODE_SIZE + NODE_PARENT);
+	}
+
+	private Node node(int index) {
+		return index == NONE ? null : new Node(this, index);
+	}
+
+	private int findChild(int node, String name) {
+		Integer nameId = names.get(name);
+		if (nameId == null) return NONE;
+		int child = nodes.getInt((long) node * NODE_SIZE + NODE_FIRST_CHILD);
+		while (child != NONE) {
+			long address = (long) child * NODE_SIZE;
+			if (nodes.getInt(address + NODE_NAME) == nameId) return child;
+			child = nodes.getInt(address + NODE_NEXT_SIBLING);
+		}
+		return NONE;
+	}
+
+	private Node[] getChildren(int node, String name) {
+		int nameId = NONE;
+		if (name != null) {
+			Integer id = names.get(name);
+			if (id == null) return new Node[0];
+			nameId = id;
+		}
+		List<Node> list = new ArrayList<Node>();
+		int child = nodes.getInt((long) node * NODE_SIZE + NODE_FIRST_CHILD);
+		while (child != NONE) {
+			long address = (long) child * NODE_SIZE;
+			if (name == null || nodes.getInt(address + NODE_NAME) == nameId) list.add(new Node(this, child));
+			child = nodes.getInt(address + NODE_NEXT_SIBLING);
+		}
+		return list.toArray(new Node[list.size()]);
+	}
+
+	private int findAttribute(int start, int count, int nameId) {
+		for (int i = start; i < start + count; i++) {
+			if (attributes.getInt((long) i * ATTRIB_SIZE) == nameId) return i;
+		}
+		return NONE;
+	}
+
+	private int nameId(String name) {
+		Integer id = names.get(name);
+		if (id == null) {
+			id = addString(name);
+			names.put(name, id);
+		}
+		return id;
+	}
+
+	private int addString(String s) {
+		int length = s.length();
+		long offset = chars.allocate(2L * length);
+		for (int i = 0; i < length; i++) {
+			chars.putChar(offset + 2L * i, s.charAt(i));
+		}
+		long address = strings.allocate(STRING_SIZE);
+		strings.putLong(address, offset);
+		strings.putInt(address + 8, length);
+		return stringCount++;
+	}
+
+	private String getString(int id) {
+		if (id == NONE) return "";
+		long address = (long) id * STRING_SIZE;
+		long offset = strings.getLong(address);
+		int length = strings.getInt(address + 8);
+		char[] value = new char[length];
+		for (int i = 0; i < length; i++) {
+			value[i] = chars.getChar(offset + 2L * i);
+		}
+		return new String(value);
+	}
+
+	/**
+	 * A view of a single element in an off-heap document. Nodes hold nothing but a reference to the document
+	 * and the index of the element, so they are cheap to create and throw away. Two nodes are equal if they
+	 * refer to the same element.
+	 */
+	public static final class Node {
+
+		private final OffHeapDocument document;
+		private final int index;
+
+		private Node(OffHeapDocument document, int index) {
+			this.document = document;
+			this.index = index;
+		}
+
+		private long address() {
+			return (long) index * NODE_SIZE;
+		}
+
+		/**
+		 * Get the name of this element.
+		 * @return
+		 */
+		public String getName() {
+			return document.getString(document.nodes.getInt(address() + NODE_NAME));
+		}
+
+		/**
+		 * Get the text for this element.
+		 * @return
+		 */
+		public String getText() {
+			return document.getString(document.nodes.getInt(address() + NODE_TEXT));
+		}
+
+		/**
+		 * Check if this element has a text node.
+		 * @return
+		 */
+		public boolean hasText() {
+			int id = document.nodes.getInt(address() + NODE_TEXT);
+			return id != NONE && document.strings.getInt((long) id * STRING_SIZE + 8) > 0;
+		}
+
+		/**
+		 * Get the value of the given attribute name.
+		 * @param name
+		 * @return
+		 */
+		public String getAttribute(String name) {
+			int attribute = findAttribute(name);
+			if (attribute == NONE) return "";
+			return document.getString(document.attributes.getInt((long) attribute * ATTRIB_SIZE + 4));
+		}
+
+		/**
+		 * Check if this element has an attribute of the given name.
+		 * @param name
+		 * @return
+		 */
+		public boolean hasAttribute(String name) {
+			return findAttribute(name) != NONE;
+		}
+
+		/**
+		 * Get a copy of the attributes for this element.
+		 * @return
+		 */
+		public Map<String, String> getAttributes() {
+			long address = address();
+			int start = document.nodes.getInt(address + NODE_ATTRIB_START);
+			int count = document.nodes.getInt(address + NODE_ATTRIB_COUNT);
+			Map<String, String> map = new HashMap<String, String>();
+			for (int i = start; i < start + count; i++) {
+				long attribAddress = (long) i * ATTRIB_SIZE;
+				map.put(document.getString(document.attributes.getInt(attribAddress)), document.getString(document.attributes.getInt(attribAddress + 4)));
+			}
+			return map;
+		}
+
+		/**
+		 * Get a child element with the given name.
+		 * @param name
+		 * @return
+		 */
+		public Node getChild(String name) {
+			return document.node(document.findChild(index, name));
+		}
+
+		/**
+		 * Get an array of all children elements under this element.
+		 * @return
+		 */
+		public Node[] getChildren() {
+			return document.getChildren(index, null);
+		}
+
+		/**
+		 * Get an array of all child elements with the given name.
+		 * @param name
+		 * @return
+		 */
+		public Node[] getChildren(String name) {
+			return document.getChildren(index, name);
+		}
+
+		/**
+		 * Check if this element has any children.
+		 * @return
+		 */
+		public boolean hasChildren() {
+			return document.nodes.getInt(address() + NODE_FIRST_CHILD) != NONE;
+		}
+
+		/**
+		 * Get the parent element of this element, or null for elements at the top level of the document.
+		 * @return
+		 */
+		public Node getParent() {
+			int parent = document.getParentIndex(index);
+			return parent == 0 ? null : document.node(parent);
+		}
+
+		/**
+		 * Copy this element and everything within it into a regular, orphaned element on the heap.
+		 * @return
+		 */
+		public Element toElement() {
+			OffHeapBuffer nodes = document.nodes;
+			Element top = copy(index);
+			// Walk the subtree with explicit stacks, so that deep documents can't overflow the call stack.
+			List<Integer> pending = new ArrayList<Integer>();
+			List<Element> parents = new ArrayList<Element>();
+			pending.add(index);
+			parents.add(top);
+			while (!pending.isEmpty()) {
+				int node = pending.remove(pending.size() - 1);
+				Element element = parents.remove(parents.size() - 1);
+				int child = nodes.getInt((long) node * NODE_SIZE + NODE_FIRST_CHILD);
+				while (child != NONE) {
+					Element copy = copy(child);
+					element.addChild(copy);
+					pending.add(child);
+					parents.add(copy);
+					child = nodes.getInt((long) child * NODE_SIZE + NODE_NEXT_SIBLING);
+				}
+			}
+			return top;
+		}
+
+		private Element copy(int node) {
+			Node view = new Node(document, node);
+			Element element = new Element(view.getName());
+			Map<String, String> attributes = view.getAttributes();
+			if (!attributes.isEmpty()) element.setAttributes(attributes);
+			if (view.hasText()) element.setText(view.getText());
+			return element;
+		}
+
+		private int findAttribute(String name) {
+			Integer nameId = document.names.get(name);
+			if (nameId == null) return NONE;
+			long address = address();
+			return document.findAttribute(document.nodes.getInt(address + NODE_ATTRIB_START), document.nodes.getInt(address + NODE_ATTRIB_COUNT), nameId);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Node)) return false;
+			Node other = (Node) obj;
+			return document == other.document && index == other.index;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(document) + index;
+		}
+
+		@Override
+		public String toString() {
+			return getName() + getAttributes();
+		}
+
+	}
+
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+/**
+ * An element filter which keeps the elements on a set of paths. An element is kept if it is on one of the
+ * given paths, is inside an element on one of the paths, or is an ancestor of one. For example, the path
+ * {@code Config/Database} keeps the {@code Config} element, its {@code Database} child and everything
+ * within, but skips all other children of {@code Config}.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+public class PathFilter implements ElementFilter {
+
+	private final String[] paths;
+
+	/**
+	 * Create a new filter keeping the given element paths. Paths are element names separated by a slash.
+	 * @param paths
+	 */
+	public PathFilter(String... paths) {
+		this.paths = new String[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			String path = paths[i];
+			int start = 0;
+			int end = path.length();
+			while (start < end && path.charAt(start) == '/') start++;
+			while (end > start && path.charAt(end - 1) == '/') end--;
+			this.paths[i] = path.substring(start, end);
+		}
+	}
+
+	@Override
+	public boolean accept(String path) {
+		for (String p : paths) {
+			if (p.equals(path)) return true;
+			// The element is an ancestor of a kept path.
+			if (p.length() > path.length() && p.startsWith(path) && p.charAt(path.length()) == '/') return true;
+			// The element is inside a kept path.
+			if (path.length() > p.length() && path.startsWith(p) && path.charAt(p.length()) == '/') return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Scans an XML stream for repeating elements and yields the raw text of each one, so that a document with
+ * millions of records can be read one record at a time. Only the tags are looked at while scanning, and
+ * only the record currently being read is kept in memory. Records are matched either by name or by depth,
+ * where the top level of the document is depth 0.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+final class RecordReader implements Iterator<String>, Closeable {
+
+	private final Reader reader;
+	private final String name;
+	private final int depth;
+	private final char[] buffer = new char[8192];
+	private int position = 0;
+	private int limit = 0;
+
+	private final StringBuilder tag = new StringBuilder();
+	private StringBuilder record;
+	private int recordDepth;
+	private int currentDepth = 0;
+	private String next;
+	private boolean finished = false;
+
+	/**
+	 * Create a reader yielding the elements with the given name, or the elements at the given depth if the name is null.
+	 * @param reader
+	 * @param name
+	 * @param depth
+	 */
+	RecordReader(Reader reader, String name, int depth) {
+		this.reader = reader;
+		this.name = name;
+		this.depth = depth;
+	}
+
+	/**
+	 * Check if there is another record. The reader is closed once there are no more records, or if reading fails.
+	 */
+	@Override
+	public boolean hasNext() {
+		if (next == null && !finished) {
+			try {
+				next = readRecord();
+			}
+			catch (IOException e) {
+				UncheckedIOException thrown = new UncheckedIOException("Failed to read XML file.", e);
+				closeAfter(thrown);
+				throw thrown;
+			}
+			catch (XMLException e) {
+				IllegalStateException thrown = new IllegalStateException(e.getMessage(), e);
+				closeAfter(thrown);
+				throw thrown;
+			}
+			if (next == null) {
+				try {
+					close();
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException("Failed to close XML file.", e);
+				}
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public String next() {
+		if (!hasNext()) throw new NoSuchElementException();
+		String record = next;
+		next = null;
+		return record;
+	}
+
+	@Override
+	public void close() throws IOException {
+		finished = true;
+		reader.close();
+	}
+
+	/**
+	 * Close the reader after reading failed, keeping any problem closing it with the given exception.
+	 */
+	private void closeAfter(RuntimeException thrown) {
+		try {
+			close();
+		}
+		catch (IOException e) {
+			thrown.addSuppressed(e);
+		}
+	}
+
+	private int read() throws IOException {
+		if (position == limit) {
+			limit = reader.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position++];
+	}
+
+	/**
+	 * Read the tag following a '<' into the tag buffer, without the angle brackets. Comments, CDATA sections,
+	 * processing instructions and quoted attribute values are read in full, even if they contain '>' characters.
+	 */
+	private void readTag() throws IOException, XMLException {
+		tag.setLength(0);
+		char quote = 0;
+		while (true) {
+			int c = read();
+			if (c == -1) throw new XMLException("Unexpected end of file inside a tag.");
+			if (record != null) record.append((char) c);
+			if (quote != 0) {
+				if (c == quote) quote = 0;
+			}
+			else if ((c == '"' || c == '\'') && tag.length() > 0 && tag.charAt(0) != '!' && tag.charAt(0) != '?') {
+				quote = (char) c;
+			}
+			else if (c == '>') {
+				if (startsWith("!--") && !endsWith("--")) {
+					tag.append('>');
+					continue;
+				}
+				if (startsWith("![CDATA[") && !endsWith("]]")) {
+					tag.append('>');
+					continue;
+				}
+				if (startsWith("?") && !endsWith("?")) {
+					tag.append('>');
+					continue;
+				}
+				return;
+			}
+			tag.append((char) c);
+		}
+	}
+
+	private boolean startsWith(String prefix) {
+		if (tag.length() < prefix.length()) return false;
+		for (int i = 0; i < prefix.length(); i++) {
+			if (tag.charAt(i) != prefix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private boolean endsWith(String suffix) {
+		int offset = tag.length() - suffix.length();
+		if (offset < 0) return false;
+		for (int i = 0; i < suffix.length(); i++) {
+			if (tag.charAt(offset + i) != suffix.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private boolean matches(int start, int end) {
+		if (name == null) return currentDepth == depth;
+		if (end - start != name.length()) return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (tag.charAt(start + i) != name.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private String readRecord() throws IOException, XMLException {
+		int c;
+		while ((c = read()) != -1) {
+			if (record != null) record.append((char) c);
+			if (c != '<') continue;
+
+			readTag();
+			if (tag.length() == 0) throw new XMLException("Empty tag found.");
+			char first = tag.charAt(0);
+			if (first == '?' || first == '!') continue;
+
+			if (first == '/') {
+				currentDepth--;
+				if (record != null && currentDepth == recordDepth) {
+					String raw = record.toString();
+					record = null;
+					return raw;
+				}
+				continue;
+			}
+
+			boolean inline = tag.charAt(tag.length() - 1) == '/';
+			if (record == null) {
+				int nameEnd = 0;
+				while (nameEnd < tag.length() && !Character.isWhitespace(tag.charAt(nameEnd)) && tag.charAt(nameEnd) != '/') {
+					nameEnd++;
+				}
+				if (matches(0, nameEnd)) {
+					StringBuilder raw = new StringBuilder(tag.length() + 2).append('<').append(tag).append('>');
+					if (inline) return raw.toString();
+					record = raw;
+					recordDepth = currentDepth;
+				}
+			}
+			if (!inline) currentDepth++;
+		}
+		if (record != null) throw new XMLException("Unexpected end of file inside a record.");
+		return null;
+	}
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+import java.util.Arrays;
+
+/**
+ * The positions in the source file of the elements in a document, as read with
+ * {@link XMLParser#OPTION_TRACK_POSITIONS}. Positions are kept in a few arrays of numbers instead of an
+ * object per element, and each element only knows its index into them.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+public final class SourcePositions {
+
+	private int[] lines = new int[64];
+	private int[] columns = new int[64];
+	private long[] byteOffsets = new long[64];
+	/** The element at each index, so that elements of other documents with the same index are told apart. */
+	private Element[] elements = new Element[64];
+	private int count = 0;
+	
+	SourcePositions() {}
+	
+	/**
+	 * Record the position of the start tag of the given element.
+	 */
+	void add(Element element, int line, int column, long byteOffset) {
+		if (count == lines.length) {
+			int capacity = count * 2;
+			lines = Arrays.copyOf(lines, capacity);
+			columns = Arrays.copyOf(columns, capacity);
+			byteOffsets = Arrays.copyOf(byteOffsets, capacity);
+			elements = Arrays.copyOf(elements, capacity);
+		}
+		lines[count] = line;
+		columns[count] = column;
+		byteOffsets[count] = byteOffset;
+		elements[count] = element;
+		element._position = count++;
+	}
+	
+	/**
+	 * Get the line of the start tag of the given element, starting at 1.
+	 * @param element
+	 * @return the line, or -1 if the element wasn't read with this document.
+	 */
+	public int getLine(Element element) {
+		int index = indexOf(element);
+		return index == -1 ? -1 : lines[index];
+	}
+	
+	/**
+	 * Get the column of the start tag of the given element, starting at 1. Columns are counted in characters.
+	 * @param element
+	 * @return the column, or -1 if the element wasn't read with this document.
+	 */
+	public int getColumn(Element element) {
+		int index = indexOf(element);
+		return index == -1 ? -1 : columns[index];
+	}
+	
+	/**
+	 * Get the offset in bytes from the start of the file to the start tag of the given element. This can be
+	 * used to seek straight to the element in the file.
+	 * @param element
+	 * @return the byte offset, or -1 if the element wasn't read with this document.
+	 */
+	public long getByteOffset(Element element) {
+		int index = indexOf(element);
+		return index == -1 ? -1 : byteOffsets[index];
+	}
+	
+	/**
+	 * Get the number of elements with a known position.
+	 */
+	public int size() {
+		return count;
+	}
+	
+	private int indexOf(Element element) {
+		int index = element._position;
+		return index >= 0 && index < count && elements[index] == element ? index : -1;
+	}
+	
+}
@@ -26,13 +26,61 @@ package net.buttology.util.jeximel;
 public class XMLException extends Exception {
 
 	private static final long serialVersionUID = 6187199395026420548L;
+	
+	private final int line;
+	private final int column;
+	private final long byteOffset;
 
 	public XMLException(String message) {
-		super(message);
+		this(message, null);
 	}
 
 	public XMLException(String message, Throwable cause) {
 		super(message, cause);
+		this.line = -1;
+		this.column = -1;
+		this.byteOffset = -1;
+	}
+	
+	/**
+	 * Create an exception for an error at the given position in the source file.
+	 * @param message
+	 * @param line - The line number, starting at 1.
+	 * @param column - The column number, starting at 1.
+	 * @param byteOffset - The offset in bytes from the start of the file, or -1 if unknown.
+	 * @param cause
+	 */
+	public XMLException(String message, int line, int column, long byteOffset, Throwable cause) {
+		super(byteOffset == -1 
+				? String.format("%s (line %d, column %d)", message, line, column) 
+				: String.format("%s (line %d, column %d, byte %d)", message, line, column, byteOffset), cause);
+		this.line = line;
+		this.column = column;
+		this.byteOffset = byteOffset;
+	}
+	
+	/**
+	 * Get the line in the source file where this error occurred, starting at 1.
+	 * @return the line, or -1 if unknown.
+	 */
+	public int getLine() {
+		return line;
+	}
+	
+	/**
+	 * Get the column in the source file where this error occurred, starting at 1.
+	 * @return the column, or -1 if unknown.
+	 */
+	public int getColumn() {
+		return column;
+	}
+	
+	/**
+	 * Get the offset in bytes from the start of the source file where this error occurred.
+	 * @return the byte offset, or -1 if unknown.
+	 */
+	public long getByteOffset() {
+		return byteOffset;
 	}
 	
 }
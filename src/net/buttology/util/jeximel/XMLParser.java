@@ -18,13 +18,35 @@
  */
 package net.buttology.util.jeximel;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * This utility class can read and write XML files. When reading XML files, 
@@ -39,12 +61,32 @@ public class XMLParser {
 	public static final int OPTION_ATTR_NEWLINE_INLINE = 0x1;
 	/** Use this export option to write newline characters for each attribute an element has, regardless of context. */
 	public static final int OPTION_ATTR_NEWLINE_ALL = 0x2;
+	/** Use this import option to keep the original text of the document, so that it can later be written with {@link #writeIncremental}. Ignored when reading with a filter. Text and attributes are read the same as without it. */
+	public static final int OPTION_RETAIN_SOURCE = 0x4;
+	/** Use this export option to write large documents using several threads. The output is the same as without it. */
+	public static final int OPTION_PARALLEL = 0x8;
+	/** Use this import option to keep the whitespace around text exactly as it is in the file, instead of trimming it. */
+	public static final int OPTION_PRESERVE_WHITESPACE = 0x10;
+	/** Use this import option to keep the line, column and byte offset of every element, available from {@link Document#getSourcePositions()}. Text and attributes are read the same as without it. */
+	public static final int OPTION_TRACK_POSITIONS = 0x20;
+	/** The maximum number of levels elements may be nested, unless changed with {@link #setMaxDepth(int)}. */
+	public static final int DEFAULT_MAX_DEPTH = 100000;
 	
 	/** Change this to true to print debug messages in the standard output. */
 	public static boolean debug = false;
 	private static String charset;
+	private static int maxDepth = DEFAULT_MAX_DEPTH;
 	
-	private static int _indentCount = 0;
+	/** Elements with at least this many children have their children written in parallel when using {@link #OPTION_PARALLEL}. */
+	private static final int PARALLEL_THRESHOLD = 64;
+	/** The largest number of sibling elements written by a single task when using {@link #OPTION_PARALLEL}. */
+	private static final int MAX_PARALLEL_BATCH = 256;
+	/**
+	 * Export option writing elements without any indentation or line breaks between them, and line breaks and tabs
+	 * in text and attribute values as character references, so that everything reads back exactly as it was with
+	 * {@link #OPTION_PRESERVE_WHITESPACE}. Used for files only read by this library, such as journal snapshots.
+	 */
+	static final int OPTION_EXACT = 0x10000;
 	
 	/**
 	 * Sets the global charset used by this class for reading and writing tasks. If set to null, system default is used.
@@ -54,6 +96,17 @@ public class XMLParser {
 		XMLParser.charset = charset;
 	}
 	
+	/**
+	 * Sets the maximum number of levels elements may be nested when reading and writing documents. Documents nested 
+	 * deeper than this fail with an XMLException. Reading and writing never recurse, so any depth can be allowed
+	 * as long as there is memory for it.
+	 * @param maxDepth
+	 */
+	public static void setMaxDepth(int maxDepth) {
+		if (maxDepth < 1) throw new IllegalArgumentException("Maximum depth must be at least 1.");
+		XMLParser.maxDepth = maxDepth;
+	}
+	
 	/**
 	 * Read an XML document from the given input stream using the system's default underlying charset.
 	 * @param is - The input stream used to read the file
@@ -73,33 +126,486 @@ public class XMLParser {
 	 */
 	public static Document read(InputStream is, String charset) throws XMLException
 	{
+		return read(is, charset, null);
+	}
+	
+	/**
+	 * Read an XML document from the given input stream, keeping only the elements accepted by the given filter.
+	 * Elements which are not accepted are skipped together with their contents, without being built.
+	 * @param is - The input stream used to read the file
+	 * @param charset - The charset used to parse characters.
+	 * @param filter - The filter deciding what elements to keep, or null to keep everything.
+	 * @return
+	 * @throws XMLException
+	 * @see PathFilter
+	 */
+	public static Document read(InputStream is, String charset, ElementFilter filter) throws XMLException
+	{
+		return read(is, charset, filter, 0);
+	}
+	
+	/**
+	 * Read an XML document from the given input stream, with options.
+	 * @param is - The input stream used to read the file
+	 * @param charset - The charset used to parse characters.
+	 * @param options - An option value from this class that specifies import parameters.
+	 * @return
+	 * @throws XMLException
+	 */
+	public static Document read(InputStream is, String charset, int options) throws XMLException
+	{
+		return read(is, charset, null, options);
+	}
+	
+	/**
+	 * Read an XML document from the given input stream, keeping only the elements accepted by the given filter, with options.
+	 * @param is - The input stream used to read the file
+	 * @param charset - The charset used to parse characters.
+	 * @param filter - The filter deciding what elements to keep, or null to keep everything.
+	 * @param options - An option value from this class that specifies import parameters.
+	 * @return
+	 * @throws XMLException
+	 */
+	public static Document read(InputStream is, String charset, ElementFilter filter, int options) throws XMLException
+	{
+		boolean optionRetainSource = filter == null && (options & OPTION_RETAIN_SOURCE) == OPTION_RETAIN_SOURCE;
+		boolean optionPreserveWhitespace = (options & OPTION_PRESERVE_WHITESPACE) == OPTION_PRESERVE_WHITESPACE;
+		boolean optionTrackPositions = (options & OPTION_TRACK_POSITIONS) == OPTION_TRACK_POSITIONS;
 		debug("Reading XML file...");
 		long startTime = System.currentTimeMillis();
 		
-		XMLParser x = new XMLParser();
-		x.prepare();
-		String content = x.readStream(is, charset);
-		debug("Finished reading XML file in %d ms.", System.currentTimeMillis() - startTime);
+		XMLParser x = obtain();
+		try
+		{
+			x._filter = filter;
+			x._preserveWhitespace = optionPreserveWhitespace;
+			x._joinLines = !optionPreserveWhitespace;
+			if (optionTrackPositions)
+				x._positions = new SourcePositions();
+			String content = x.readStream(is, charset, optionRetainSource || optionPreserveWhitespace || optionTrackPositions);
+			debug("Finished reading XML file in %d ms.", System.currentTimeMillis() - startTime);
+			
+			debug("Parsing XML data...");
+			startTime = System.currentTimeMillis();
+			
+			if (content.trim().isEmpty()) throw new XMLException("File is empty.");
+			
+			try
+			{
+				x.parse(content);
+			}
+			catch (NullPointerException npe)
+			{
+				throw new XMLException("Failed parsing contents of file, is it valid XML?");
+			}
+			
+			debug("Finished parsing XML data in %d ms.", System.currentTimeMillis() - startTime);
+			
+			if (optionTrackPositions)
+				x._root.setSourcePositions(x._positions);
+			if (optionRetainSource)
+			{
+				// Everything done while parsing counts as the original state.
+				x._root.setSource(content);
+				x._root.getDocumentElement().markClean();
+			}
+			return x._root;
+		}
+		finally
+		{
+			x.release();
+		}
+	}
+
+	/**
+	 * Read an XML document from the given input stream into memory outside the Java heap, using the system's
+	 * default underlying charset.
+	 * @param is - The input stream used to read the file
+	 * @return
+	 * @throws XMLException
+	 * @see #readOffHeap(InputStream, String)
+	 */
+	public static OffHeapDocument readOffHeap(InputStream is) throws XMLException {
+		return readOffHeap(is, null);
+	}
+	
+	/**
+	 * Read an XML document from the given input stream into memory outside the Java heap. The elements are
+	 * stored as they are parsed, without ever creating {@link Element}s for them or holding all of the text on
+	 * the heap. This is meant for very large documents which would otherwise put a lot of pressure on the
+	 * garbage collector.
+	 * @param is - The input stream used to read the file
+	 * @param charset - The charset used to parse characters.
+	 * @return
+	 * @throws XMLException
+	 */
+	public static OffHeapDocument readOffHeap(InputStream is, String charset) throws XMLException
+	{
+		debug("Reading XML file into off-heap memory...");
+		long startTime = System.currentTimeMillis();
 		
-		debug("Parsing XML data...");
-		startTime = System.currentTimeMillis();
+		XMLParser x = obtain();
+		OffHeapDocument store = new OffHeapDocument();
+		boolean success = false;
+		try
+		{
+			x._store = store;
+			x._node = 0;
+			try
+			{
+				x.parseStream(is, charset, CHUNK_SIZE);
+			}
+			catch (NullPointerException npe)
+			{
+				throw new XMLException("Failed parsing contents of file, is it valid XML?");
+			}
+			
+			store.setVersion(x._root.getVersion());
+			store.setEncoding(x._root.getEncoding());
+			store.setStandalone(x._root.getStandalone());
+			debug("Finished reading %d elements in %d ms.", store.getElementCount(), System.currentTimeMillis() - startTime);
+			success = true;
+			return store;
+		}
+		finally
+		{
+			x.release();
+			if (!success)
+				store.close();
+		}
+	}
+
+	/**
+	 * Read a possibly compressed XML document from the given input stream using the system's default underlying charset.
+	 * @param is - The input stream used to read the file
+	 * @return
+	 * @throws XMLException
+	 * @see #readCompressed(InputStream, String)
+	 */
+	public static Document readCompressed(InputStream is) throws XMLException {
+		return readCompressed(is, null);
+	}
+
+	/**
+	 * Read a possibly compressed XML document from the given input stream. The format is detected from the
+	 * first bytes of the stream, and plain XML is read as normal. Gzip is supported, while Zstandard is
+	 * recognised but rejected as there is no decoder for it in the standard library. Decompression runs on
+	 * a separate thread, and the text is parsed a chunk at a time as it's decompressed, so the two overlap.
+	 * Plain XML is parsed in chunks too.
+	 * @param is - The input stream used to read the file
+	 * @param charset - The charset used to parse characters.
+	 * @return
+	 * @throws XMLException
+	 */
+	public static Document readCompressed(InputStream is, String charset) throws XMLException
+	{
+		debug("Reading possibly compressed XML file...");
+		long startTime = System.currentTimeMillis();
 		
-		if (content.isEmpty()) throw new XMLException("File is empty.");
+		InputStream in = Compression.inflate(is);
+		XMLParser x = obtain();
+		try
+		{
+			try
+			{
+				x.parseStream(in, charset, Compression.CHUNK_SIZE);
+			}
+			catch (NullPointerException npe)
+			{
+				throw new XMLException("Failed parsing contents of file, is it valid XML?");
+			}
+			catch (XMLException e)
+			{
+				// A broken stream usually shows up as a parsing error, so report the real cause if there is one.
+				Compression.checkError(in);
+				throw e;
+			}
+			Compression.checkError(in);
+			debug("Finished reading XML file in %d ms.", System.currentTimeMillis() - startTime);
+			return x._root;
+		}
+		finally
+		{
+			x.release();
+		}
+	}
+
+	/**
+	 * Read the elements with the given name one at a time from the given input stream. Each element is
+	 * built in full with all its children, the same as when reading the whole document, but is not attached
+	 * to a document, so it can be garbage collected
+	 * as soon as the caller is done with it. Matching elements nested inside another match are returned as
+	 * part of the outer one. Problems reading the stream are thrown as an {@link UncheckedIOException}, and
+	 * malformed records as an {@link IllegalStateException} caused by an {@link XMLException}.
+	 * The input stream is closed once all elements have been read, or if reading it fails. To stop before
+	 * that, close the input stream, or use {@link #stream(InputStream, String, String)} in a try-with-resources.
+	 * @param is - The input stream used to read the file
+	 * @param charset - The charset used to parse characters.
+	 * @param name - The name of the repeating element.
+	 * @return
+	 */
+	public static Iterator<Element> iterate(InputStream is, String charset, String name)
+	{
+		if (name == null) throw new NullPointerException("Element name cannot be null.");
+		return iterate(new RecordReader(openReader(is, charset), name, -1));
+	}
+	
+	/**
+	 * Read the elements at the given depth one at a time from the given input stream, where 0 is the top level
+	 * of the document. For a root element wrapping many records, the records are at depth 1.
+	 * @param is - The input stream used to read the file
+	 * @param charset - The charset used to parse characters.
+	 * @param depth - The depth of the repeating elements.
+	 * @return
+	 * @see #iterate(InputStream, String, String)
+	 */
+	public static Iterator<Element> iterate(InputStream is, String charset, int depth)
+	{
+		if (depth < 0) throw new IllegalArgumentException("Depth cannot be negative.");
+		return iterate(new RecordReader(openReader(is, charset), null, depth));
+	}
+	
+	/**
+	 * Stream the elements with the given name from the given input stream. The stream supports parallel
+	 * processing, in which case the records are built on the worker threads. Closing the stream closes the
+	 * input stream.
+	 * @param is - The input stream used to read the file
+	 * @param charset - The charset used to parse characters.
+	 * @param name - The name of the repeating element.
+	 * @return
+	 * @see #iterate(InputStream, String, String)
+	 */
+	public static Stream<Element> stream(InputStream is, String charset, String name)
+	{
+		if (name == null) throw new NullPointerException("Element name cannot be null.");
+		return stream(new RecordReader(openReader(is, charset), name, -1));
+	}
+	
+	/**
+	 * Stream the elements at the given depth from the given input stream, where 0 is the top level of the document.
+	 * @param is - The input stream used to read the file
+	 * @param charset - The charset used to parse characters.
+	 * @param depth - The depth of the repeating elements.
+	 * @return
+	 * @see #stream(InputStream, String, String)
+	 */
+	public static Stream<Element> stream(InputStream is, String charset, int depth)
+	{
+		if (depth < 0) throw new IllegalArgumentException("Depth cannot be negative.");
+		return stream(new RecordReader(openReader(is, charset), null, depth));
+	}
+	
+	/**
+	 * Estimate how much memory the document in the given input stream takes up once read, using the system's default
+	 * underlying charset.
+	 * @param is - The input stream used to read the file
+	 * @return
+	 * @throws XMLException
+	 * @see #estimate(InputStream, String)
+	 */
+	public static MemoryFootprint estimate(InputStream is) throws XMLException
+	{
+		return estimate(is, null);
+	}
+	
+	/**
+	 * Estimate how much memory the document in the given input stream takes up once read, without reading it. The
+	 * stream is scanned for tags, attributes and text, but no elements are built and only the counts are kept, so
+	 * this is much quicker than reading the document and works for files of any size. Use
+	 * {@link MemoryFootprint#getRecommendedMode()} to choose how to read the file. The input stream is closed.
+	 * @param is - The input stream used to read the file
+	 * @param charset - The charset used to parse characters.
+	 * @return
+	 * @throws XMLException
+	 */
+	public static MemoryFootprint estimate(InputStream is, String charset) throws XMLException
+	{
+		Reader reader = openReader(is, charset);
+		try
+		{
+			return FootprintEstimator.estimate(reader);
+		}
+		catch (IOException e)
+		{
+			throw new XMLException("Failed to read XML file.", e);
+		}
+		finally
+		{
+			try
+			{
+				reader.close();
+			}
+			catch (IOException e)
+			{
+				debug("Failed to close input stream: %s", e);
+			}
+		}
+	}
+	
+	/**
+	 * Read the elements bound to the given class from the given input stream using the system's default underlying charset.
+	 * @param is - The input stream used to read the file
+	 * @param type - A class annotated with {@link XMLElement}.
+	 * @return
+	 * @throws XMLException
+	 * @see #bind(InputStream, String, Class)
+	 */
+	public static <T> List<T> bind(InputStream is, Class<T> type) throws XMLException {
+		return bind(is, null, type);
+	}
+	
+	/**
+	 * Read the elements bound to the given class from the given input stream into new objects of that class. The
+	 * class names the path of its elements with {@link XMLElement}, and its fields are bound to attributes with 
+	 * {@link XMLAttribute}, to the text with {@link XMLText} or to the text of child elements with {@link XMLElement}.
+	 * The objects are filled in while parsing, without creating any {@link Element}s, and everything else in the
+	 * document is skipped. The class needs a constructor without parameters.
+	 * @param is - The input stream used to read the file
+	 * @param charset - The charset used to parse characters.
+	 * @param type - A class annotated with {@link XMLElement}.
+	 * @return the objects in the order their elements appear in the document.
+	 * @throws XMLException
+	 * @throws IllegalArgumentException if the class can't be bound.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> List<T> bind(InputStream is, String charset, Class<T> type) throws XMLException
+	{
+		Binding binding = Binding.of(type);
+		debug("Binding XML file to %s...", type.getName());
+		long startTime = System.currentTimeMillis();
 		
+		XMLParser x = obtain();
 		try
 		{
+			x._binding = binding;
+			x._bound = new ArrayList<Object>();
+			String content = x.readStream(is, charset, false);
+			if (content.isEmpty()) throw new XMLException("File is empty.");
 			x.parse(content);
+			debug("Finished binding %d objects in %d ms.", x._bound.size(), System.currentTimeMillis() - startTime);
+			return (List<T>) x._bound;
+		}
+		finally
+		{
+			x.release();
+		}
+	}
+	
+	private static Iterator<Element> iterate(final RecordReader records)
+	{
+		return new Iterator<Element>()
+		{
+			@Override
+			public boolean hasNext()
+			{
+				return records.hasNext();
+			}
+			
+			@Override
+			public Element next()
+			{
+				return parseRecord(records.next());
+			}
+		};
+	}
+	
+	private static Stream<Element> stream(final RecordReader records)
+	{
+		// Only the raw text is handed out by the spliterator, so the actual parsing happens on whichever thread consumes it.
+		Spliterator<String> spliterator = Spliterators.spliteratorUnknownSize(records, Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false)
+				.map(XMLParser::parseRecord)
+				.onClose(() -> {
+					try
+					{
+						records.close();
+					}
+					catch (IOException e)
+					{
+						throw new UncheckedIOException("Failed to close XML file.", e);
+					}
+				});
+	}
+	
+	private static Element parseRecord(String raw)
+	{
+		try
+		{
+			return parseElement(raw, true);
+		}
+		catch (XMLException e)
+		{
+			throw new IllegalStateException(e.getMessage(), e);
+		}
+	}
+	
+	/**
+	 * Parse a single element, with everything within it, from the given text. Whitespace and line terminators are
+	 * kept in text and attribute values.
+	 */
+	static Element parseElement(String xml) throws XMLException
+	{
+		return parseElement(xml, false);
+	}
+	
+	/**
+	 * Parse a single element, with everything within it, from the given text.
+	 * @param joinLines - Whether to leave line terminators out of text and attribute values, the same as when
+	 * reading a document.
+	 */
+	private static Element parseElement(String xml, boolean joinLines) throws XMLException
+	{
+		XMLParser x = obtain();
+		try
+		{
+			// The text keeps its line terminators, and positions in errors are relative to it.
+			x._verbatim = true;
+			x._joinLines = joinLines;
+			x._preserveWhitespace = !joinLines;
+			x.parse(xml);
+			Element element = x._root.getChildren()[0];
+			element.detach();
+			return element;
 		}
 		catch (NullPointerException npe)
 		{
-			throw new XMLException("Failed parsing contents of file, is it valid XML?");
+			throw new XMLException("Failed parsing element, is it valid XML?", npe);
 		}
-		
-		debug("Finished parsing XML data in %d ms.", System.currentTimeMillis() - startTime);
-		
-		Document d = x._root;
-		x = null;
-		return d;
+		finally
+		{
+			x.release();
+		}
+	}
+	
+	/**
+	 * Write the given element, with everything within it, to a string which reads back exactly with {@link #parseElement(String)}.
+	 */
+	static String toXML(Element element) throws XMLException
+	{
+		StringWriter sw = new StringWriter();
+		try
+		{
+			writeElement(element, sw, OPTION_EXACT, 0);
+		}
+		catch (IOException e)
+		{
+			// A StringWriter never throws.
+			throw new UncheckedIOException(e);
+		}
+		return sw.toString();
+	}
+	
+	private static Reader openReader(InputStream is, String charset)
+	{
+		if (is == null) throw new NullPointerException("Input stream cannot be null.");
+		return new InputStreamReader(is, getCharset(charset));
+	}
+	
+	private static Charset getCharset(String charset)
+	{
+		if (charset == null) charset = XMLParser.charset;
+		if (charset == null) return Charset.defaultCharset();
+		return Charset.forName(charset);
 	}
 	
 	/**
@@ -111,7 +617,6 @@ public class XMLParser {
 	 */
 	public static void write(Document document, OutputStream os, String charset, int options) throws XMLException
 	{
-		_indentCount = 0;
 		debug("Writing XML document to file...");
 		long startTime = System.currentTimeMillis();
 		
@@ -137,9 +642,16 @@ public class XMLParser {
 				osw.write('\n');
 			}
 						
-			for (Element e : document.getChildren())
+			if ((options & OPTION_PARALLEL) == OPTION_PARALLEL)
+			{
+				writeElementsParallel(document.getChildren(), osw, options, 0);
+			}
+			else
 			{
-				writeElement(e, osw, options);
+				for (Element e : document.getChildren())
+				{
+					writeElement(e, osw, options, 0);
+				}
 			}
 			osw.close();
 		}
@@ -185,295 +697,1650 @@ public class XMLParser {
 	{
 		write(document, os, null, 0);
 	}
-	
-	private static void writeElement(Element e, OutputStreamWriter osw, int options) throws IOException
-	{
-		boolean optionAttrNewline = (options & OPTION_ATTR_NEWLINE_INLINE) == OPTION_ATTR_NEWLINE_INLINE;
-		boolean optionAttrNewlineAll = (options & OPTION_ATTR_NEWLINE_ALL) == OPTION_ATTR_NEWLINE_ALL;
 
-		String tabs = getTabs();
-		String tag = tabs + "<" + e.getName();
-		for(String s : e.getAttributes().keySet())
-		{
-			if ((optionAttrNewline && !e.hasChildren() && !e.hasText()) || optionAttrNewlineAll)
-				tag += "\n" + tabs + "\t";
-			else
-				tag += " ";
-			tag += s + "=\"" + e.getAttribute(s) + "\"";
+	/**
+	 * Write the given XML document to the given output stream, copying everything that hasn't changed since it was
+	 * read straight from the original text. Only elements that have been changed, or whose children have been added
+	 * or removed, are written again, so small changes to large documents are cheap to save. Of a changed element with
+	 * children, only the tags and text are written again, and its children, comments and formatting are kept. This requires the
+	 * document to have been read with {@link #OPTION_RETAIN_SOURCE}. Otherwise, or if the declaration or the
+	 * top level elements have changed, the whole document is written as normal.
+	 * @param document
+	 * @param os
+	 * @param charset
+	 * @param options - An option value from this class that specifies export parameters for the changed elements.
+	 * @throws XMLException
+	 */
+	public static void writeIncremental(Document document, OutputStream os, String charset, int options) throws XMLException
+	{
+		String source = document.getSource();
+		Element root = document.getDocumentElement();
+		if (source == null || document.isDeclarationChanged() || root._modified)
+		{
+			debug("Document can't be written incrementally, writing all of it.");
+			write(document, os, charset, options);
+			return;
+		}
+		
+		debug("Writing XML document incrementally...");
+		long startTime = System.currentTimeMillis();
+		
+		try
+		{
+			OutputStreamWriter osw;
+			if(charset != null) osw = new OutputStreamWriter(os, charset);
+			else if(XMLParser.charset != null) osw = new OutputStreamWriter(os, XMLParser.charset);
+			else osw = new OutputStreamWriter(os);
+			
+			writeIncremental(root, source, osw, options);
+			osw.close();
+		}
+		catch (IOException e)
+		{
+			throw new XMLException("Failed to write XML file.", e);
+		}
+		
+		debug("Finished writing XML file in %d ms.", (System.currentTimeMillis() - startTime));
+	}
+	
+	/**
+	 * Write the source text of the children of the given element, writing changed elements again in place of the original
+	 * ones. Elements which only have changes further down are walked into with an explicit stack instead of recursion.
+	 * Changed elements which still have children from the source only get their tags and text written again, and
+	 * everything else within them is copied, except for the removed children.
+	 */
+	private static void writeIncremental(Element root, String source, Writer osw, int options) throws IOException, XMLException
+	{
+		ArrayDeque<IncrementalFrame> stack = new ArrayDeque<IncrementalFrame>();
+		stack.push(new IncrementalFrame(root, 0, source.length(), 0, false, null));
+		while (!stack.isEmpty())
+		{
+			IncrementalFrame frame = stack.peek();
+			if (!frame.children.hasNext())
+			{
+				writeSource(source, frame.pos, frame.end, frame, osw);
+				if (frame.endTag != null)
+					osw.write(frame.endTag);
+				stack.pop();
+				continue;
+			}
+			Element e = frame.children.next();
+			if (e._sourceStart < frame.pos || e._sourceEnd > frame.end)
+			{
+				// An element added since the document was read goes after the ones before it, on a line of its own.
+				StringWriter sw = new StringWriter();
+				writeElement(e, sw, options, frame.depth);
+				StringBuffer sb = sw.getBuffer();
+				osw.write('\n');
+				osw.write(sb.substring(0, sb.length() - 1));
+				continue;
+			}
+			writeSource(source, frame.pos, e._sourceStart, frame, osw);
+			frame.pos = e._sourceEnd;
+			if (!e._dirty)
+			{
+				osw.write(source, e._sourceStart, e._sourceEnd - e._sourceStart);
+				continue;
+			}
+			if (!e._modified && e.hasChildren())
+			{
+				stack.push(new IncrementalFrame(e, e._sourceStart, e._sourceEnd, frame.depth + 1, false, null));
+				continue;
+			}
+			int contentStart = findTagEnd(source, e._sourceStart) + 1;
+			int contentEnd = source.lastIndexOf('<', e._sourceEnd - 1);
+			if (e.hasChildren() && hasSourceChildren(e, contentStart, contentEnd))
+			{
+				// Only the tags and the text of the element have changed, or some of its children are new or gone.
+				// Write the tags again and copy what's between them, leaving out removed children, and the old text
+				// if there's a new one.
+				osw.write(startTag(e, options, getTabs(frame.depth)));
+				if (e._textModified && e.hasText())
+					osw.write(Entities.encode(e.getText(), false));
+				IncrementalFrame inner = new IncrementalFrame(e, contentStart, contentEnd, frame.depth + 1, true, "</" + e.getName() + ">");
+				inner.keepText = !e._textModified;
+				stack.push(inner);
+			}
+			else
+			{
+				// The element itself has changed, so write it again. The original indentation before the start tag
+				// and the line break after the end tag are still there in the copied text around it.
+				StringWriter sw = new StringWriter();
+				writeElement(e, sw, options, frame.depth);
+				StringBuffer sb = sw.getBuffer();
+				osw.write(sb.substring(frame.depth, sb.length() - 1));
+			}
+		}
+	}
+	
+	/**
+	 * Check if any children of the given element were read from between the given indices of the source.
+	 */
+	private static boolean hasSourceChildren(Element e, int start, int end)
+	{
+		for (Element child : e.getChildMap().values())
+		{
+			if (child._sourceStart >= start && child._sourceEnd <= end)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Copy the source text between the given indices. Inside a changed element, elements found in it are removed
+	 * children and are left out, and so is text if the element has a new one. Comments, processing instructions
+	 * and whitespace are kept, except for the indentation of what's left out.
+	 */
+	private static void writeSource(String source, int start, int end, IncrementalFrame frame, Writer osw) throws IOException
+	{
+		if (!frame.filter)
+		{
+			osw.write(source, start, end - start);
+			return;
+		}
+		// Whitespace is held back until it's known whether what follows it is kept, so that whatever is left out
+		// doesn't leave an empty line behind.
+		StringBuilder whitespace = new StringBuilder();
+		int depth = 0;
+		int i = start;
+		while (i < end)
+		{
+			boolean top = depth == 0;
+			char c = source.charAt(i);
+			int next;
+			boolean keep;
+			if (c != '<')
+			{
+				next = i + 1;
+				keep = frame.keepText;
+				if (top && c <= ' ')
+				{
+					whitespace.append(c);
+					i = next;
+					continue;
+				}
+			}
+			else if (source.startsWith("<!--", i))
+			{
+				next = source.indexOf("-->", i + 4) + 3;
+				keep = true;
+			}
+			else if (source.startsWith("<![CDATA[", i))
+			{
+				next = source.indexOf("]]>", i + 9) + 3;
+				keep = frame.keepText;
+			}
+			else if (source.startsWith("<?", i))
+			{
+				next = source.indexOf("?>", i + 2) + 2;
+				keep = true;
+			}
+			else
+			{
+				next = findTagEnd(source, i + 1) + 1;
+				keep = false;
+				if (source.charAt(i + 1) == '/')
+					depth--;
+				else if (source.charAt(next - 2) != '/')
+					depth++;
+			}
+			if (top && keep)
+			{
+				osw.append(whitespace).write(source, i, next - i);
+				whitespace.setLength(0);
+			}
+			else if (top)
+			{
+				dropLine(whitespace);
+			}
+			i = next;
+		}
+		osw.append(whitespace);
+	}
+	
+	/**
+	 * Drop the last line of the given whitespace, together with the line break before it.
+	 */
+	private static void dropLine(StringBuilder whitespace)
+	{
+		int lineBreak = whitespace.lastIndexOf("\n");
+		whitespace.setLength(Math.max(0, lineBreak));
+	}
+	
+	/**
+	 * Find the '>' ending the tag which starts at the given index of the given text, skipping over any inside
+	 * quoted attribute values.
+	 */
+	private static int findTagEnd(String text, int from)
+	{
+		char quote = 0;
+		for (int i = from; i < text.length(); i++)
+		{
+			char c = text.charAt(i);
+			if (quote != 0)
+			{
+				if (c == quote)
+					quote = 0;
+			}
+			else if (c == '"' || c == '\'')
+				quote = c;
+			else if (c == '>')
+				return i;
+		}
+		return text.length() - 1;
+	}
+	
+	/**
+	 * An element being written incrementally, with the position in the source text up to which it has been written.
+	 */
+	private static class IncrementalFrame
+	{
+		final Iterator<Element> children;
+		final int end;
+		final int depth;
+		/** Whether the element has changed, so that removed children have to be left out of the copied text. */
+		final boolean filter;
+		/** The end tag written after the copied text, or null if it's copied along with it. */
+		final String endTag;
+		/** Whether text in the copied text is kept, which it isn't when the element has a new text. */
+		boolean keepText = true;
+		int pos;
+		
+		IncrementalFrame(Element e, int start, int end, int depth, boolean filter, String endTag)
+		{
+			this.children = e.getChildMap().values().iterator();
+			this.pos = start;
+			this.end = end;
+			this.depth = depth;
+			this.filter = filter;
+			this.endTag = endTag;
+		}
+	}
+	
+	/**
+	 * Write the given XML document to the given output stream with gzip compression, with options.
+	 * Compression runs on a separate thread so that it overlaps with writing the elements. The output stream
+	 * is closed when done, and also if writing fails, in which case the compressed data is left unfinished.
+	 * @param document
+	 * @param os
+	 * @param charset
+	 * @param options - An option value from this class that specifies export parameters.
+	 * @throws XMLException
+	 */
+	public static void writeCompressed(Document document, OutputStream os, String charset, int options) throws XMLException
+	{
+		OutputStream out = Compression.deflate(os);
+		boolean success = false;
+		try
+		{
+			write(document, out, charset, options);
+			success = true;
+		}
+		finally
+		{
+			if (!success)
+				Compression.abort(out);
+		}
+	}
+
+	/**
+	 * Write the given XML document to the given output stream with gzip compression using the default charset.
+	 * @param document
+	 * @param os
+	 * @throws XMLException
+	 */
+	public static void writeCompressed(Document document, OutputStream os) throws XMLException
+	{
+		writeCompressed(document, os, null, 0);
+	}
+
+	/**
+	 * Write the given element and everything within it. The tree is walked with an explicit stack of child iterators
+	 * instead of recursion, so deeply nested documents can't overflow the call stack.
+	 */
+	private static void writeElement(Element e, Writer osw, int options, int depth) throws IOException, XMLException
+	{
+		checkDepth(depth);
+		writeStartTag(e, osw, options, depth);
+		if (!e.hasChildren())
+			return;
+		
+		ArrayDeque<Element> parents = new ArrayDeque<Element>();
+		ArrayDeque<Iterator<Element>> stack = new ArrayDeque<Iterator<Element>>();
+		parents.push(e);
+		stack.push(e.getChildMap().values().iterator());
+		while (!stack.isEmpty())
+		{
+			int level = depth + stack.size();
+			Iterator<Element> it = stack.peek();
+			if (it.hasNext())
+			{
+				Element child = it.next();
+				checkDepth(level);
+				writeStartTag(child, osw, options, level);
+				if (child.hasChildren())
+				{
+					parents.push(child);
+					stack.push(child.getChildMap().values().iterator());
+				}
+			}
+			else
+			{
+				stack.pop();
+				writeEndTag(parents.pop(), osw, options, level - 1);
+			}
+		}
+	}
+	
+	/**
+	 * Fail if an element at the given depth, where 0 is the top level, is nested deeper than allowed.
+	 */
+	private static void checkDepth(int depth) throws XMLException
+	{
+		if (depth >= maxDepth)
+			throw new XMLException("Elements are nested deeper than the maximum depth of " + maxDepth + ".");
+	}
+	
+	/**
+	 * Write the start tag of the given element, with its text. Elements without children are written in full.
+	 */
+	private static void writeStartTag(Element e, Writer osw, int options, int depth) throws IOException
+	{
+		boolean optionExact = (options & OPTION_EXACT) == OPTION_EXACT;
+		boolean optionAttrNewline = !optionExact && (options & OPTION_ATTR_NEWLINE_INLINE) == OPTION_ATTR_NEWLINE_INLINE;
+		boolean optionAttrNewlineAll = !optionExact && (options & OPTION_ATTR_NEWLINE_ALL) == OPTION_ATTR_NEWLINE_ALL;
+		String newline = optionExact ? "" : "\n";
+
+		String tabs = optionExact ? "" : getTabs(depth);
+		if (e.hasChildren())
+		{
+			String tag = tabs + startTag(e, options, tabs);
+			// Text of an element with children goes before them, where it's read back from.
+			if (e.hasText())
+				tag += Entities.encode(e.getText(), false, optionExact);
+			osw.write(tag + newline);
+			return;
+		}
+		
+		String tag = tabs + "<" + e.getName() + attributes(e, options, tabs);
+		if (!e.hasText())
+		{
+			if ((optionAttrNewline || optionAttrNewlineAll) && e.hasAttributes())
+				tag += "\n" + tabs;
+			else
+				tag += " ";
+			tag += "/>" + newline;
+		}
+		else
+		{
+			tag += ">" + Entities.encode(e.getText(), false, optionExact) + "</" + e.getName() + ">" + newline;
+		}
+		osw.write(tag);
+	}
+	
+	/**
+	 * Get the start tag of the given element with children, without indentation before it or text after it.
+	 */
+	private static String startTag(Element e, int options, String tabs)
+	{
+		String tag = "<" + e.getName() + attributes(e, options, tabs);
+		if ((options & OPTION_EXACT) != OPTION_EXACT && (options & OPTION_ATTR_NEWLINE_ALL) == OPTION_ATTR_NEWLINE_ALL && e.hasAttributes())
+			tag += "\n" + tabs;
+		return tag + ">";
+	}
+	
+	/**
+	 * Get the attributes of the given element the way they're written in its start tag, each with a space or a
+	 * line break before it.
+	 */
+	private static String attributes(Element e, int options, String tabs)
+	{
+		boolean optionExact = (options & OPTION_EXACT) == OPTION_EXACT;
+		boolean optionAttrNewline = !optionExact && (options & OPTION_ATTR_NEWLINE_INLINE) == OPTION_ATTR_NEWLINE_INLINE;
+		boolean optionAttrNewlineAll = !optionExact && (options & OPTION_ATTR_NEWLINE_ALL) == OPTION_ATTR_NEWLINE_ALL;
+		String attributes = "";
+		for (String s : e.getAttributes().keySet())
+		{
+			if ((optionAttrNewline && !e.hasChildren() && !e.hasText()) || optionAttrNewlineAll)
+				attributes += "\n" + tabs + "\t";
+			else
+				attributes += " ";
+			attributes += s + "=\"" + Entities.encode(e.getAttribute(s), true, optionExact) + "\"";
+		}
+		return attributes;
+	}
+	
+	/**
+	 * Write the end tag of the given element, if it has children.
+	 */
+	private static void writeEndTag(Element e, Writer osw, int options, int depth) throws IOException
+	{
+		if (e.hasChildren())
+		{
+			if ((options & OPTION_EXACT) == OPTION_EXACT)
+				osw.write("</" + e.getName() + ">");
+			else
+				osw.write(getTabs(depth) + "</" + e.getName() + ">\n");
+		}
+	}
+	
+	/**
+	 * Write the given elements on the fork-join pool. Runs of elements are written to separate buffers by the
+	 * worker threads, and the buffers are written to the output in order as they finish. Elements with many
+	 * children are not written as one piece, but have their children split up the same way, keeping track of
+	 * them on an explicit stack. Only a limited number of buffers are waiting at any time, so memory use stays
+	 * bounded for large documents.
+	 */
+	private static void writeElementsParallel(Element[] elements, Writer osw, int options, int depth) throws IOException, XMLException
+	{
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		int window = pool.getParallelism() * 4;
+		ArrayDeque<ForkJoinTask<String>> pending = new ArrayDeque<ForkJoinTask<String>>();
+		ArrayDeque<ParallelFrame> stack = new ArrayDeque<ParallelFrame>();
+		stack.push(new ParallelFrame(null, elements, window));
+		try
+		{
+			while (!stack.isEmpty())
+			{
+				ParallelFrame frame = stack.peek();
+				int level = depth + stack.size() - 1;
+				Element[] siblings = frame.elements;
+				int i = frame.index;
+				if (i == siblings.length)
+				{
+					stack.pop();
+					if (frame.parent != null)
+					{
+						while (!pending.isEmpty())
+							osw.write(join(pending.poll()));
+						writeEndTag(frame.parent, osw, options, level - 1);
+					}
+					continue;
+				}
+				
+				Element e = siblings[i];
+				if (e.getChildCount() >= PARALLEL_THRESHOLD)
+				{
+					while (!pending.isEmpty())
+						osw.write(join(pending.poll()));
+					checkDepth(level);
+					writeStartTag(e, osw, options, level);
+					frame.index = i + 1;
+					stack.push(new ParallelFrame(e, e.getChildren(), window));
+					continue;
+				}
+				int end = i + 1;
+				while (end < siblings.length && end - i < frame.batch && siblings[end].getChildCount() < PARALLEL_THRESHOLD)
+					end++;
+				pending.add(pool.submit(new WriteTask(siblings, i, end, options, level)));
+				if (pending.size() >= window)
+					osw.write(join(pending.poll()));
+				frame.index = end;
+			}
+			while (!pending.isEmpty())
+				osw.write(join(pending.poll()));
+		}
+		finally
+		{
+			for (ForkJoinTask<String> task : pending)
+				task.cancel(false);
+		}
+	}
+	
+	/**
+	 * Wait for the given task, passing on an XMLException if it failed with one.
+	 */
+	private static String join(ForkJoinTask<String> task) throws XMLException
+	{
+		try
+		{
+			return task.join();
+		}
+		catch (RuntimeException e)
+		{
+			for (Throwable cause = e; cause != null; cause = cause.getCause())
+			{
+				if (cause instanceof XMLException)
+					throw (XMLException) cause;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * A run of siblings being written in parallel, with the index of the next one to write.
+	 */
+	private static class ParallelFrame
+	{
+		final Element parent;
+		final Element[] elements;
+		final int batch;
+		int index = 0;
+		
+		ParallelFrame(Element parent, Element[] elements, int window)
+		{
+			this.parent = parent;
+			this.elements = elements;
+			this.batch = Math.max(1, Math.min(MAX_PARALLEL_BATCH, elements.length / window));
+		}
+	}
+	
+	/**
+	 * Writes a run of sibling elements to a string on a worker thread.
+	 */
+	private static class WriteTask extends RecursiveTask<String>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		private final Element[] elements;
+		private final int start;
+		private final int end;
+		private final int options;
+		private final int depth;
+		
+		WriteTask(Element[] elements, int start, int end, int options, int depth)
+		{
+			this.elements = elements;
+			this.start = start;
+			this.end = end;
+			this.options = options;
+			this.depth = depth;
+		}
+		
+		@Override
+		protected String compute()
+		{
+			StringWriter sw = new StringWriter();
+			try
+			{
+				for (int i = start; i < end; i++)
+					writeElement(elements[i], sw, options, depth);
+			}
+			catch (IOException e)
+			{
+				// A StringWriter never throws.
+				throw new UncheckedIOException(e);
+			}
+			catch (XMLException e)
+			{
+				throw new IllegalStateException(e);
+			}
+			return sw.toString();
+		}
+	}
+	
+	private static String getTabs(int depth)
+	{
+		StringBuilder tab = new StringBuilder(depth);
+		for (int i = 0; i < depth; i++)
+			tab.append('\t');
+		return tab.toString();
+	}
+	
+	/** Parsers kept around for reuse by each thread, so that their buffers survive between calls. */
+	private static final ThreadLocal<XMLParser> POOL = new ThreadLocal<XMLParser>()
+	{
+		@Override
+		protected XMLParser initialValue()
+		{
+			return new XMLParser();
+		}
+	};
+	
+	/** Buffers that have grown beyond this many characters are dropped on release instead of being kept. */
+	private static final int MAX_RETAINED_BUFFER = 1 << 20;
+	/** Number of characters parsed at a time when a document is parsed without reading all of it first. */
+	static final int CHUNK_SIZE = 1 << 20;
+	/** Initial size of the symbol table. Must be a power of two. */
+	private static final int SYMBOL_TABLE_SIZE = 256;
+	/** Maximum number of names kept in the symbol table, so that odd documents can't make it grow forever. */
+	private static final int MAX_SYMBOLS = 8192;
+	
+	/**
+	 * Get a parser for the current thread, reusing the pooled one if it's not already busy.
+	 */
+	private static XMLParser obtain()
+	{
+		XMLParser x = POOL.get();
+		if (x._inUse)
+			x = new XMLParser();
+		x._inUse = true;
+		x.prepare();
+		return x;
+	}
+	
+	private XMLParser() {}
+	
+	private Document 	_root;
+	private Element 	_parent;
+	private String		_content;
+	private ElementFilter _filter;
+	private StringBuilder _path = new StringBuilder();
+	private boolean		_inUse = false;
+	private boolean		_preserveWhitespace = false;
+	/** Whether line terminators are left out of text and attribute values in verbatim content, as if lines had been joined while reading. */
+	private boolean		_joinLines = false;
+	private OffHeapDocument _store;
+	private int			_node = OffHeapDocument.NONE;
+	private Binding		_binding;
+	private List<Object> _bound;
+	private Object		_bindTarget;
+	private Binding.Property _bindField;
+	
+	private char[]		_chars = new char[8192];
+	private StringBuilder _buffer = new StringBuilder();
+	private String[]	_symbols = new String[SYMBOL_TABLE_SIZE];
+	private int			_symbolCount = 0;
+	
+	private String readStream(InputStream is, String charset, boolean verbatim) throws NullPointerException, XMLException
+	{
+		_charset = getCharset(charset);
+		_bytesPerChar = bytesPerChar(_charset);
+		_verbatim = verbatim;
+		_bomBytes = 0;
+		if (verbatim && is != null && (_charset.name().equals("UTF-16") || _charset.name().equals("UTF-32")))
+		{
+			// These charsets drop a byte order mark while decoding, so it has to be counted before byte offsets can be.
+			if (!is.markSupported())
+				is = new BufferedInputStream(is);
+			_bomBytes = bomLength(is);
+		}
+		_trackBytes = _bomBytes;
+		Reader reader = openReader(is, charset);
+		_lineCount = 0;
+		_afterCR = false;
+		StringBuilder sb = _buffer;
+		sb.setLength(0);
+		char[] chars = _chars;
+
+		try
+		{
+			int n;
+			while ((n = reader.read(chars, 0, chars.length)) != -1)
+			{
+				if (verbatim)
+					sb.append(chars, 0, n);
+				else
+					appendJoined(sb, chars, n);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new XMLException("Failed to read XML file.", e);
+		}
+		finally
+		{
+			try
+			{
+				reader.close();
+			}
+			catch (IOException e)
+			{
+				debug("Failed to close input stream: %s", e);
+			}
+		}
+		
+		if (verbatim)
+			return sb.toString();
+		int start = 0;
+		int end = sb.length();
+		while (start < end && sb.charAt(start) <= ' ') start++;
+		while (end > start && sb.charAt(end - 1) <= ' ') end--;
+		_contentShift = start;
+		return sb.substring(start, end);
+	}
+	
+	/**
+	 * Get the length of the UTF-16 or UTF-32 byte order mark at the start of the given stream, without consuming it.
+	 * @return the number of bytes, or 0 if there is none.
+	 */
+	private static int bomLength(InputStream is) throws XMLException
+	{
+		byte[] b = new byte[4];
+		int n = 0;
+		try
+		{
+			is.mark(b.length);
+			int read;
+			while (n < b.length && (read = is.read(b, n, b.length - n)) != -1)
+				n += read;
+			is.reset();
+		}
+		catch (IOException e)
+		{
+			throw new XMLException("Failed to read XML file.", e);
+		}
+		if (n == 4 && b[0] == 0 && b[1] == 0 && (b[2] & 0xFF) == 0xFE && (b[3] & 0xFF) == 0xFF)
+			return 4;
+		if (n == 4 && (b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xFE && b[2] == 0 && b[3] == 0)
+			return 4;
+		if (n >= 2 && (((b[0] & 0xFF) == 0xFE && (b[1] & 0xFF) == 0xFF) || ((b[0] & 0xFF) == 0xFF && (b[1] & 0xFF) == 0xFE)))
+			return 2;
+		return 0;
+	}
+	
+	/**
+	 * Append the given characters without their line terminators, remembering where each line started so that
+	 * errors can still be reported by line.
+	 */
+	private void appendJoined(StringBuilder sb, char[] chars, int n)
+	{
+		boolean afterCR = _afterCR;
+		int start = 0;
+		for (int i = 0; i < n; i++)
+		{
+			char c = chars[i];
+			if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085')
+			{
+				sb.append(chars, start, i - start);
+				start = i + 1;
+				if (c == '\r' || (c == '\n' && !afterCR))
+					addLineStart(sb.length());
+			}
+			afterCR = c == '\r';
+		}
+		sb.append(chars, start, n - start);
+		_afterCR = afterCR;
+	}
+	
+	/**
+	 * Parse the given stream a chunk of about the given number of characters at a time, without ever holding all of
+	 * its text. Markup and text which may go on past the end of a chunk are carried over to the next one, and lines
+	 * are joined the same way as when the whole text is read first.
+	 */
+	private void parseStream(InputStream is, String charset, int chunkSize) throws XMLException
+	{
+		Reader reader = openReader(is, charset);
+		_charset = getCharset(charset);
+		_bytesPerChar = bytesPerChar(_charset);
+		_verbatim = false;
+		_lineCount = 0;
+		_afterCR = false;
+		_foundElement = false;
+		StringBuilder sb = _buffer;
+		sb.setLength(0);
+		char[] chars = _chars;
+		boolean blank = true;
+		int threshold = chunkSize;
+		
+		try
+		{
+			boolean eof = false;
+			while (!eof)
+			{
+				int n = reader.read(chars, 0, chars.length);
+				if (n == -1)
+					eof = true;
+				else
+					appendJoined(sb, chars, n);
+				if (!eof && sb.length() < threshold)
+					continue;
+				
+				String content = sb.toString();
+				if (blank)
+					blank = content.trim().isEmpty();
+				int stop = parseChunk(content, !eof);
+				sb.delete(0, stop);
+				dropLineStarts(stop);
+				// Markup larger than a chunk is read further before trying again, instead of being scanned over and over.
+				threshold = Math.max(chunkSize, 2 * sb.length());
+			}
+		}
+		catch (IOException e)
+		{
+			throw new XMLException("Failed to read XML file.", e);
+		}
+		finally
+		{
+			try
+			{
+				reader.close();
+			}
+			catch (IOException e)
+			{
+				debug("Failed to close input stream: %s", e);
+			}
 		}
 		
-		if (!e.hasChildren())
+		if (!_foundElement)
+			throw new XMLException(blank ? "File is empty." : "Failed parsing contents of file, is it valid XML?");
+	}
+	
+	/**
+	 * Forget the line starts in the given number of characters at the start of the content, which have been parsed.
+	 * The start of the line the rest of the content begins in is kept, so that columns can still be counted from it.
+	 */
+	private void dropLineStarts(int consumed)
+	{
+		int keep = 0;
+		while (keep < _lineCount && _lineStarts[keep] <= consumed)
+			keep++;
+		int drop = Math.max(0, keep - 1);
+		System.arraycopy(_lineStarts, drop, _lineStarts, 0, _lineCount - drop);
+		_lineCount -= drop;
+		_lineBase += drop;
+		for (int i = 0; i < _lineCount; i++)
+			_lineStarts[i] -= consumed;
+	}
+	
+	private void addLineStart(int index)
+	{
+		if (_lineCount == _lineStarts.length)
+			_lineStarts = Arrays.copyOf(_lineStarts, _lineCount * 2);
+		_lineStarts[_lineCount++] = index;
+	}
+	
+	// Position tracking. In verbatim content, lines and bytes are counted forward from the start as parsing
+	// moves along, so that every position is found without going back over the content. In joined content the
+	// line terminators are gone, so lines are looked up from the line starts noted while reading instead, and
+	// byte offsets are unknown.
+	private SourcePositions _positions;
+	private Charset		_charset;
+	/** Number of bytes per character in the charset, 0 if it varies, -1 for UTF-8 or -2 for UTF-32. */
+	private int			_bytesPerChar = 0;
+	/** Encoder counting the bytes of each character in charsets without a simpler rule, created when first needed. */
+	private CharsetEncoder _encoder;
+	private CharBuffer	_encodeIn;
+	private ByteBuffer	_encodeOut;
+	private boolean		_verbatim = false;
+	private int[]		_lineStarts = new int[64];
+	private int			_lineCount = 0;
+	/** Number of lines before the first line start kept, when lines are forgotten as the content is parsed in chunks. */
+	private long		_lineBase = 0;
+	private boolean		_afterCR = false;
+	private int			_contentShift = 0;
+	private int			_trackIndex = 0;
+	private int			_trackLine = 1;
+	private int			_trackLineStart = 0;
+	private long		_trackBytes = 0;
+	/** Number of bytes in a byte order mark which the decoder dropped, and which byte offsets start after. */
+	private int			_bomBytes = 0;
+	
+	/**
+	 * Count lines and bytes in the verbatim content up to the given index.
+	 */
+	private void track(int index)
+	{
+		String content = _content;
+		int bytesPerChar = _charset == null ? 1 : _bytesPerChar;
+		int line = _trackLine;
+		int lineStart = _trackLineStart;
+		long bytes = _trackBytes;
+		for (int i = _trackIndex; i < index; i++)
 		{
-			if (!e.hasText())
+			char c = content.charAt(i);
+			if (c == '\n' || (c == '\r' && (i + 1 == content.length() || content.charAt(i + 1) != '\n')))
 			{
-				if ((optionAttrNewline || optionAttrNewlineAll) && e.hasAttributes())
-					tag += "\n" + tabs;
-				else
-					tag += " ";
-				tag += "/>\n";
+				line++;
+				lineStart = i + 1;
 			}
-			else
+			if (bytesPerChar == -1)
+			{
+				// A surrogate pair is 4 bytes, counted as 2 for each half.
+				if (c < 0x80) bytes++;
+				else if (c < 0x800 || Character.isSurrogate(c)) bytes += 2;
+				else bytes += 3;
+			}
+			else if (bytesPerChar == -2)
+			{
+				// Every code point is 4 bytes, so a surrogate pair is counted as 2 for each half.
+				bytes += Character.isSurrogate(c) ? 2 : 4;
+			}
+			else if (bytesPerChar == 0)
 			{
-				tag += ">" + formatTextToXml(e.getText()) + "</" + e.getName() + ">\n";
+				boolean pair = Character.isHighSurrogate(c) && i + 1 < index && Character.isLowSurrogate(content.charAt(i + 1));
+				bytes += encodedLength(c, pair ? content.charAt(++i) : 0);
 			}
 		}
-		else
+		if (bytesPerChar > 0)
+			bytes += (long) bytesPerChar * (index - _trackIndex);
+		_trackIndex = index;
+		_trackLine = line;
+		_trackLineStart = lineStart;
+		_trackBytes = bytes;
+	}
+	
+	/**
+	 * Get the number of bytes the given character, or surrogate pair if the second character isn't 0, takes in the
+	 * charset being read.
+	 */
+	private int encodedLength(char c, char low)
+	{
+		if (_encoder == null || !_encoder.charset().equals(_charset))
 		{
-			_indentCount++;
-			if ((optionAttrNewline && !e.hasChildren() && !e.hasText()) || optionAttrNewlineAll && e.hasAttributes())
-				tag += "\n" + tabs;
-			tag += ">\n";
+			_encoder = _charset.newEncoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			_encodeIn = CharBuffer.allocate(2);
+			_encodeOut = ByteBuffer.allocate((int) Math.ceil(_encoder.maxBytesPerChar() * 2) + 8);
 		}
-		osw.write(tag);
-		for (Element child : e.getChildren())
+		CharBuffer in = _encodeIn;
+		ByteBuffer out = _encodeOut;
+		in.clear();
+		in.put(c);
+		if (low != 0)
+			in.put(low);
+		in.flip();
+		out.clear();
+		_encoder.reset();
+		_encoder.encode(in, out, true);
+		_encoder.flush(out);
+		return out.position();
+	}
+	
+	/**
+	 * Get the fixed number of bytes each character takes in the given charset, 0 if it varies, -1 for UTF-8 or -2
+	 * for UTF-32.
+	 */
+	private static int bytesPerChar(Charset charset)
+	{
+		String name = charset.name();
+		if (name.equals("UTF-8"))
+			return -1;
+		if (name.startsWith("UTF-16"))
+			return 2;
+		if (name.startsWith("UTF-32"))
+			return -2;
+		return charset.newEncoder().maxBytesPerChar() == 1 ? 1 : 0;
+	}
+	
+	/**
+	 * Give the given exception the position of the given index in the content, unless it has one already.
+	 */
+	private XMLException atPosition(XMLException e, int index)
+	{
+		if (e.getLine() != -1)
+			return e;
+		int line;
+		int column;
+		long bytes = -1;
+		if (_verbatim)
 		{
-			writeElement(child, osw, options);
+			if (index < _trackIndex)
+			{
+				_trackIndex = 0;
+				_trackLine = 1;
+				_trackLineStart = 0;
+				_trackBytes = _bomBytes;
+			}
+			track(index);
+			line = _trackLine;
+			column = index - _trackLineStart + 1;
+			if (_charset != null)
+				bytes = _trackBytes;
 		}
-		if (e.hasChildren())
+		else
 		{
-			_indentCount--;
-			osw.write(tabs + "</" + e.getName() + ">\n");
+			int joined = index + _contentShift;
+			int lines = Arrays.binarySearch(_lineStarts, 0, _lineCount, joined);
+			lines = lines < 0 ? -lines - 1 : lines + 1;
+			while (lines < _lineCount && _lineStarts[lines] == joined) lines++;
+			line = (int) Math.min(Integer.MAX_VALUE, _lineBase + lines + 1);
+			column = joined - (lines == 0 ? 0 : _lineStarts[lines - 1]) + 1;
 		}
+		XMLException positioned = new XMLException(e.getMessage(), line, column, bytes, e.getCause());
+		positioned.setStackTrace(e.getStackTrace());
+		return positioned;
+	}
+	
+	/** Index of the '<' starting the markup currently being processed. */
+	private int _parseStart = 0;
+	/** Index of the '>' ending the markup currently being processed. */
+	private int _parseStop = 0;
+	/** Whether more content follows the content being parsed, so that markup running past its end isn't an error. */
+	private boolean _more = false;
+	/** Whether an element has been found yet, after which declarations are no longer looked for. */
+	private boolean _foundElement = false;
+	/** Number of elements currently open. */
+	private int _depth = 0;
+	/** Number of elements currently open inside an element rejected by the filter, or 0 if not inside one. */
+	private int _skipDepth = 0;
+	
+	// Pieces of text found in the open elements, from the outermost to the innermost. The text of an element is
+	// put together from its pieces when the element is closed, so that text around comments, CDATA sections and
+	// child elements is all kept.
+	private String[]	_segments = new String[16];
+	private boolean[]	_cdata = new boolean[16];
+	private int			_segmentCount = 0;
+	private int[]		_segmentStart = new int[16];
+
+	private void parse(String content) throws XMLException
+	{
+		_foundElement = false;
+		parseChunk(content, false);
+		if (!_foundElement)
+			throw new XMLException("Failed parsing contents of file, is it valid XML?");
 	}
 	
-	private static String getTabs()
+	/**
+	 * Parse as much of the given content as possible. If more content follows it, text and markup which may go on
+	 * in the next chunk are left unparsed.
+	 * @return the index where parsing stopped.
+	 */
+	private int parseChunk(String content, boolean more) throws XMLException
 	{
-		String tab = "";
-		for (int i = 0; i < _indentCount; i++)
-			tab += "\t";
-		return tab;
+		_content = content;
+		_more = more;
+		int length = content.length();
+		int pos = 0;
+		
+		// Scan forward through the content, handling each kind of markup in a single pass.
+		try
+		{
+			while (pos < length)
+			{
+				int lt = content.indexOf('<', pos);
+				// Nine characters are enough to tell what kind of markup follows.
+				if (more && (lt == -1 || length - lt < 9))
+					break;
+				int textEnd = lt == -1 ? length : lt;
+				if (textEnd > pos && _depth > 0 && _skipDepth == 0)
+					addText(pos, textEnd);
+				if (lt == -1)
+					break;
+			
+				_parseStart = lt;
+				pos = lt;
+				if (content.startsWith("<!--", lt))
+				{
+					int end = find("-->", lt + 4, "comment");
+					if (end == -1)
+						break;
+					pos = end + 3;
+				}
+				else if (content.startsWith("<![CDATA[", lt))
+				{
+					int end = find("]]>", lt + 9, "CDATA section");
+					if (end == -1)
+						break;
+					if (_depth > 0 && _skipDepth == 0)
+						addCData(lt + 9, end);
+					pos = end + 3;
+				}
+				else if (content.startsWith("<?", lt))
+				{
+					int end = find("?>", lt + 2, "processing instruction");
+					if (end == -1)
+						break;
+					_parseStop = end + 1;
+					if (!_foundElement && isDeclaration(lt))
+					{
+						debug("Declaration line: " + content.substring(lt + 1, _parseStop));
+						this.processDeclaration();
+					}
+					else
+					{
+						debug("Encountered a processing instruction, ignoring.");
+					}
+					pos = _parseStop + 1;
+				}
+				else if (content.startsWith("<!", lt))
+				{
+					int end = findDoctypeEnd(lt + 2);
+					if (end == -1)
+						break;
+					debug("Encountered a document type declaration, ignoring.");
+					pos = end + 1;
+				}
+				else
+				{
+					int end = findTagEnd(lt + 1);
+					if (end == -1)
+						break;
+					_parseStop = end;
+					processTag(lt + 1, _parseStop);
+					_foundElement = true;
+					pos = _parseStop + 1;
+				}
+			}
+		}
+		catch (XMLException e)
+		{
+			throw atPosition(e, _parseStart);
+		}
+		return pos;
 	}
 	
-	private static String formatTextFromXml(String text)
+	/**
+	 * Find the given string from the given index, failing if the content ends first.
+	 * @return the index, or -1 if the content ends first but more content follows.
+	 */
+	private int find(String str, int from, String what) throws XMLException
 	{
-		return text
-				.replace("&quot;", "\"")
-				.replace("&amp;", "&")
-				.replace("&apos;", "'")
-				.replace("&lt;", "<")
-				.replace("&gt;", ">");
+		int index = _content.indexOf(str, from);
+		if (index == -1 && !_more)
+			throw new XMLException("Unexpected end of file inside a " + what + ".");
+		return index;
 	}
 	
-	private static String formatTextToXml(String text)
+	/**
+	 * Find the '>' ending a tag, skipping over any inside quoted attribute values.
+	 */
+	private int findTagEnd(int from) throws XMLException
 	{
-		return text
-				.replace("\"", "&quot;")
-				.replace("&", "&amp;")
-				.replace("'", "&apos;")
-				.replace("<", "&lt;")
-				.replace(">", "&gt;");
+		String content = _content;
+		int length = content.length();
+		char quote = 0;
+		for (int i = from; i < length; i++)
+		{
+			char c = content.charAt(i);
+			if (quote != 0)
+			{
+				if (c == quote) quote = 0;
+			}
+			else if (c == '"' || c == '\'')
+				quote = c;
+			else if (c == '>')
+				return i;
+		}
+		if (_more)
+			return -1;
+		throw new XMLException("Unexpected end of file inside a tag.");
 	}
 	
-	private XMLParser() {}
+	/**
+	 * Find the '>' ending a document type declaration, skipping over an internal subset in brackets.
+	 */
+	private int findDoctypeEnd(int from) throws XMLException
+	{
+		String content = _content;
+		int length = content.length();
+		char quote = 0;
+		int brackets = 0;
+		for (int i = from; i < length; i++)
+		{
+			char c = content.charAt(i);
+			if (quote != 0)
+			{
+				if (c == quote) quote = 0;
+			}
+			else if (c == '"' || c == '\'')
+				quote = c;
+			else if (c == '[')
+				brackets++;
+			else if (c == ']')
+				brackets--;
+			else if (c == '>' && brackets <= 0)
+				return i;
+		}
+		if (_more)
+			return -1;
+		throw new XMLException("Unexpected end of file inside a document type declaration.");
+	}
 	
-	private Document 	_root;
-	private Element 	_parent;
-	private boolean		_isComment = false;
+	private boolean isDeclaration(int lt)
+	{
+		if (!_content.startsWith("<?xml", lt))
+			return false;
+		char next = _content.charAt(lt + 5);
+		return next == '?' || isWhitespace(next);
+	}
 	
-	private String readStream(InputStream is, String charset) throws NullPointerException, XMLException
+	/**
+	 * Process the start or end tag between the given indices, which exclude the angle brackets.
+	 */
+	private void processTag(int start, int end) throws XMLException
 	{
-		if(is == null) throw new NullPointerException("Input stream cannot be null.");
-		
-		Scanner scanner;
-		if(charset != null) scanner = new Scanner(is, charset);
-		else if(XMLParser.charset != null) scanner = new Scanner(is, XMLParser.charset);
-		else scanner = new Scanner(is);
-		
-		StringBuilder sb = new StringBuilder();
-
 		try
-		{			
-			while (scanner.hasNextLine())
+		{
+			String content = _content;
+			if (content.charAt(start) == '/')
+			{
+				closeElement();
+				return;
+			}
+			
+			boolean inline = content.charAt(end - 1) == '/';
+			if (inline)
+				end--;
+			if (_depth + _skipDepth >= maxDepth)
+				throw new XMLException("Elements are nested deeper than the maximum depth of " + maxDepth + ".");
+			if (_skipDepth > 0)
+			{
+				if (!inline)
+					_skipDepth++;
+				return;
+			}
+			
+			int nameEnd = getNextWhitespaceIndex(start, end);
+			String name = symbol(start, nameEnd);
+			if (_binding != null)
+			{
+				bindTag(name, nameEnd, end, inline);
+				return;
+			}
+			if (_filter != null && !acceptElement(name, inline))
+			{
+				if (!inline)
+					_skipDepth = 1;
+				return;
+			}
+			
+			if (_store != null)
+			{
+				// Attributes go straight into the off-heap store without a map in between.
+				int node = _store.addNode(_node, name);
+				int pos = nameEnd;
+				while ((pos = nextAttribute(pos, end)) != -1)
+				{
+					_store.addAttribute(node, symbol(_attribNameStart, _attribNameEnd), decode(_attribValueStart, _attribValueEnd));
+				}
+				if (!inline)
+				{
+					_node = node;
+					openText();
+				}
+				return;
+			}
+			
+			// This is a new opening element
+			Element element = new Element(_parent, name);
+			element._sourceStart = _parseStart;
+			if (_positions != null)
+			{
+				track(_parseStart);
+				_positions.add(element, _trackLine, _parseStart - _trackLineStart + 1, _trackBytes);
+			}
+			if (inline)
+			{
+				element._sourceEnd = _parseStop + 1;
+			}
+			else
+			{
+				// This is not an in-line element, so increment the hierarchy level.
+				_parent = element;
+				openText();
+			}
+			Map<String, String> attributes = parseAttributes(nameEnd, end);
+			if (attributes != null)
 			{
-				sb.append(scanner.nextLine());
+				debug("Setting attributes: " + attributes);
+				element.setAttributes(attributes);
 			}
 		}
+		catch (XMLException e)
+		{
+			throw e;
+		}
 		catch (Exception e)
 		{
-			e.printStackTrace();
+			throw new XMLException("Failed parsing element from XML data.", e);
 		}
-		finally
-		{			
-			scanner.close();
+	}
+	
+	/**
+	 * Close the innermost open element, giving it the text found inside it, and go up one level in the hierarchy.
+	 */
+	private void closeElement() throws XMLException
+	{
+		if (_skipDepth > 0)
+		{
+			if (--_skipDepth == 0)
+				debug("Skipped filtered element.");
+			return;
+		}
+		if (_depth == 0)
+			throw new XMLException("Found a closing tag without a matching opening tag.");
+		if (_binding != null)
+		{
+			closeBinding();
+			return;
 		}
 		
-		String content = sb.toString().trim();
-		return content;
+		String text = closeText();
+		if (_store != null)
+		{
+			if (text != null)
+				_store.setText(_node, text);
+			_node = _store.getParentIndex(_node);
+		}
+		else
+		{
+			if (text != null)
+				_parent.setText(text);
+			_parent._sourceEnd = _parseStop + 1;
+			_parent = _parent.getParent();
+		}
+		if (_filter != null)
+			_path.setLength(Math.max(0, _path.lastIndexOf("/")));
 	}
 	
-	private int _parseStart = 0;
-	private int _parseStop = 0;
-
-	private void parse(String content) throws XMLException
+	/**
+	 * Bind a start tag to the object being filled in, or skip it together with its contents if nothing is bound to it.
+	 */
+	private void bindTag(String name, int nameEnd, int end, boolean inline) throws XMLException
 	{
-		String tag = getNextTag(content);
-		
-		// Check for a declaration and process it if found.
-		if (tag.charAt(0) == '?')
+		String[] path = _binding.path;
+		int depth = _depth + 1;
+		if (_bindTarget == null)
 		{
-			if (tag.startsWith("?xml")
-			&& tag.endsWith("?"))
-			{				
-				debug("Declaration line: " + tag);
-				this.processDeclaration(tag);
-				tag = getNextTag(content);
-			}
-			else
+			if (depth <= path.length && name.equals(path[depth - 1]))
 			{
-				throw new XMLException("Malformed declaration.");
+				if (depth == path.length)
+				{
+					Object target = _binding.newInstance();
+					int pos = nameEnd;
+					while ((pos = nextAttribute(pos, end)) != -1)
+					{
+						Binding.Property property = _binding.getAttribute(symbol(_attribNameStart, _attribNameEnd));
+						if (property != null)
+							property.set(target, _content, _attribValueStart, _attribValueEnd);
+					}
+					if (inline)
+					{
+						_bound.add(target);
+						return;
+					}
+					_bindTarget = target;
+				}
+				if (!inline)
+					openText();
+				return;
 			}
 		}
-		
-		// Loop through all tags.
-		do
+		else if (_bindField == null && !inline)
 		{
-			Element e = processElementFromString(tag);
-			String text;
-			text = getText(content).trim();
-			if (!text.isEmpty())
+			// Children of the bound element may have their text bound to a field.
+			_bindField = _binding.getChild(name);
+			if (_bindField != null)
 			{
-//				debug("\tTEXT ("+_parseStop+"): " + text);
-				e.setText(text);
+				openText();
+				return;
 			}
 		}
-		while ((tag = getNextTag(content)) != null);
+		if (!inline)
+			_skipDepth = 1;
 	}
 	
-	private String getText(String content) throws XMLException
+	/**
+	 * Close the innermost open element while binding, giving its text to the field bound to it.
+	 */
+	private void closeBinding() throws XMLException
 	{
-		try
+		String text = closeText();
+		if (_bindField != null)
 		{
-			_parseStart = _parseStop + 1;
-			int parseStop = content.indexOf('<', _parseStart);
-//			System.out.println(_parseStart + "-" + parseStop);
-			if (parseStop == -1 || _parseStart == -1 || parseStop <= _parseStart) return "";
-			String text = content.substring(_parseStart, parseStop);
-			return formatTextFromXml(text);
+			if (text != null)
+				_bindField.set(_bindTarget, text);
+			_bindField = null;
 		}
-		catch (Exception e)
+		else if (_bindTarget != null)
 		{
-			throw new XMLException("A parsing error occurred.");
+			Binding.Property property = _binding.getText();
+			if (property != null && text != null)
+				property.set(_bindTarget, text);
+			_bound.add(_bindTarget);
+			_bindTarget = null;
 		}
 	}
 	
-	private String getNextTag(String content) throws XMLException
+	/**
+	 * Start collecting text for a newly opened element.
+	 */
+	private void openText()
 	{
-		try
+		_depth++;
+		if (_depth == _segmentStart.length)
+			_segmentStart = Arrays.copyOf(_segmentStart, _depth * 2);
+		_segmentStart[_depth] = _segmentCount;
+	}
+	
+	private void addText(int start, int end)
+	{
+		if (_segmentCount == _segmentStart[_depth] && !_preserveWhitespace)
 		{
-			if (_parseStart == -1 || _parseStop == -1)
-				return null;
-			
-			if (_isComment)
+			// Whitespace before any text in an element is never kept, so don't bother storing it.
+			while (start < end && _content.charAt(start) <= ' ') start++;
+			if (start == end)
+				return;
+		}
+		addSegment(decode(start, end), false);
+	}
+	
+	private void addCData(int start, int end)
+	{
+		String joined = joinLines(start, end);
+		addSegment(joined != null ? joined : _content.substring(start, end), true);
+	}
+	
+	/**
+	 * Decode the entities in the content between the given indices, leaving out line terminators first where
+	 * lines are joined.
+	 */
+	private String decode(int start, int end)
+	{
+		String joined = joinLines(start, end);
+		return joined != null ? Entities.decode(joined) : Entities.decode(_content, start, end);
+	}
+	
+	/**
+	 * Leave out the line terminators in the verbatim content between the given indices, so that text and
+	 * attribute values are the same as when lines are joined while reading.
+	 * @return the text without line terminators, or null if nothing is left out.
+	 */
+	private String joinLines(int start, int end)
+	{
+		if (!_verbatim || !_joinLines)
+			return null;
+		String content = _content;
+		StringBuilder sb = null;
+		int from = start;
+		for (int i = start; i < end; i++)
+		{
+			char c = content.charAt(i);
+			if (c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029' || c == '\u0085')
 			{
-				_parseStop = content.indexOf("-->", _parseStart);
-				_isComment = false;
+				if (sb == null)
+					sb = new StringBuilder(end - start);
+				sb.append(content, from, i);
+				from = i + 1;
 			}
-			
-			_parseStart = content.indexOf('<', _parseStop);
-			_parseStop = content.indexOf('>', _parseStart);
-			if (_parseStop == -1 || _parseStart == -1 || _parseStop <= _parseStart)
-				return null;
-			String tag = content.substring(_parseStart + 1, _parseStop);
-			return tag;
 		}
-		catch (Exception e)
+		if (sb == null)
+			return null;
+		return sb.append(content, from, end).toString();
+	}
+	
+	private void addSegment(String segment, boolean cdata)
+	{
+		if (_segmentCount == _segments.length)
 		{
-			throw new XMLException("A parsing error occurred.");
+			_segments = Arrays.copyOf(_segments, _segmentCount * 2);
+			_cdata = Arrays.copyOf(_cdata, _segmentCount * 2);
 		}
+		_segments[_segmentCount] = segment;
+		_cdata[_segmentCount] = cdata;
+		_segmentCount++;
 	}
 	
-	private Element processElementFromString(String raw) throws XMLException
+	/**
+	 * Put together the text of the innermost open element from its pieces, and stop collecting text for it.
+	 * Whitespace around the text is trimmed, except where it comes from a CDATA section or whitespace is
+	 * preserved. A single piece of text
+	 * is returned as it is, so large CDATA sections are only copied once, out of the content.
+	 * @return the text, or null if there is none.
+	 */
+	private String closeText()
 	{
-		try
+		int first = _segmentStart[_depth];
+		int last = _segmentCount;
+		_depth--;
+		
+		String text = null;
+		int end = last;
+		boolean trim = !_preserveWhitespace;
+		while (trim && end > first && !_cdata[end - 1] && _segments[end - 1].trim().isEmpty())
+			end--;
+		if (end - first == 1)
 		{
-			// Check for comments
-			if (raw.startsWith("!--"))
+			text = _cdata[first] || !trim ? _segments[first] : _segments[first].trim();
+		}
+		else if (end > first)
+		{
+			StringBuilder sb = new StringBuilder();
+			for (int i = first; i < end; i++)
 			{
-				if (raw.endsWith("--"))
+				String segment = _segments[i];
+				if (trim && !_cdata[i])
 				{
-					debug("Encountered an in-line comment, ignoring.");
-					return null;
+					int start = 0;
+					int stop = segment.length();
+					if (i == first)
+						while (start < stop && segment.charAt(start) <= ' ') start++;
+					if (i == end - 1)
+						while (stop > start && segment.charAt(stop - 1) <= ' ') stop--;
+					sb.append(segment, start, stop);
 				}
-				_isComment = true;
-				debug("Encountered a multi-line comment, ignoring.");
-				return null;
-			}
-			
-			int lowestIdx = Integer.MAX_VALUE;
-			int nextWhitespace = getNextWhitespaceIndex(raw, 0);
-			if (nextWhitespace != -1)
-				lowestIdx = nextWhitespace;
-			
-			String name = raw.substring(0, Math.min(lowestIdx, raw.length()));
-			
-			if (name.charAt(0) == '/')
-			{
-				// This is a closing element, so go up one level in the hierarchy.
-				_parent = _parent.getParent();
-				return _parent;
-			}
-			else
-			{
-				// This is a new opening element
-				Element element = new Element(_parent, name);
-				if (raw.charAt(raw.length() - 1) != '/')
-					// This is not an in-line element, so increment the hierarchy level.
-					_parent = element;
-				Map<String, String> attributes = parseAttributes(raw);
-				if (attributes != null)
+				else
 				{
-					debug("Setting attributes: " + attributes);
-					element.setAttributes(attributes);
+					sb.append(segment);
 				}
-				return element;
 			}
+			text = sb.toString();
 		}
-		catch (Exception e)
-		{
-			throw new XMLException("Failed parsing element from XML data.", e);
-		}
+		
+		for (int i = first; i < last; i++)
+			_segments[i] = null;
+		_segmentCount = first;
+		return text;
+	}
+	
+	/**
+	 * Ask the filter whether an element should be kept, keeping track of the current path while inside it.
+	 */
+	private boolean acceptElement(String name, boolean inline)
+	{
+		int pathLength = _path.length();
+		if (pathLength > 0) _path.append('/');
+		_path.append(name);
+		boolean accept = _filter.accept(_path.toString());
+		if (!accept || inline)
+			_path.setLength(pathLength);
+		return accept;
+	}
+	
+	private int _attribNameStart;
+	private int _attribNameEnd;
+	private int _attribValueStart;
+	private int _attribValueEnd;
+	
+	/**
+	 * Find the next attribute in the content between the given indices. The bounds of the name and value are
+	 * stored in the _attrib fields.
+	 * @return the index following the attribute, or -1 if there are no more attributes.
+	 */
+	private int nextAttribute(int start, int end)
+	{
+		String content = _content;
+		int equals = start;
+		while (equals < end && content.charAt(equals) != '=') equals++;
+		if (equals >= end)
+			return -1;
+		int nameStart = start;
+		int nameEnd = equals;
+		while (nameStart < nameEnd && isWhitespace(content.charAt(nameStart))) nameStart++;
+		while (nameEnd > nameStart && isWhitespace(content.charAt(nameEnd - 1))) nameEnd--;
+		
+		int valueStart = equals + 1;
+		while (valueStart < end && content.charAt(valueStart) != '"' && content.charAt(valueStart) != '\'') valueStart++;
+		if (valueStart >= end)
+			return -1;
+		char quote = content.charAt(valueStart++);
+		int valueEnd = valueStart;
+		while (valueEnd < end && content.charAt(valueEnd) != quote) valueEnd++;
+		if (valueEnd >= end)
+			return -1;
+		
+		_attribNameStart = nameStart;
+		_attribNameEnd = nameEnd;
+		_attribValueStart = valueStart;
+		_attribValueEnd = valueEnd;
+		return valueEnd + 1;
 	}
 	
-	private Map<String, String> parseAttributes(String raw)
+	private Map<String, String> parseAttributes(int start, int end)
 	{
-		if (raw.trim().isEmpty()) return null;
-		Map<String, String> attribs = new HashMap<String, String>();
-		int parseStart = 0;
-		int parseStop = 0;
-		do
+		Map<String, String> attribs = null;
+		int pos = start;
+		while ((pos = nextAttribute(pos, end)) != -1)
 		{
-			parseStart = this.getNextWhitespaceIndex(raw, parseStop);
-			parseStop = raw.indexOf('=', parseStart);
-			if (parseStart == -1 || parseStop == -1)
-				break;
-			String attribName = raw.substring(parseStart, parseStop).trim();
-			parseStart = raw.indexOf('"', parseStop) + 1;
-			parseStop = raw.indexOf('"', parseStart);
-			String attribValue = raw.substring(parseStart, parseStop);
+			String attribName = symbol(_attribNameStart, _attribNameEnd);
+			String attribValue = decode(_attribValueStart, _attribValueEnd);
 			debug("Found attrib %s=%s", attribName, attribValue);
+			if (attribs == null)
+				attribs = new HashMap<String, String>();
 			attribs.put(attribName, attribValue);
 		}
-		while (raw.indexOf('=', parseStop) != -1);
-		if (attribs.isEmpty()) 
-			return null;
 		return attribs;
 	}
 	
-	private int getNextWhitespaceIndex(String raw, int startIndex)
+	private int getNextWhitespaceIndex(int start, int end)
+	{
+		int i = start;
+		while (i < end && !isWhitespace(_content.charAt(i)))
+			i++;
+		return i;
+	}
+	
+	private static boolean isWhitespace(char c)
+	{
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+	}
+	
+	/**
+	 * Get the name spanning the given indices of the content. Names are kept in a small hash table, so that
+	 * the same element and attribute names aren't copied out of the content again for every tag.
+	 */
+	private String symbol(int start, int end)
+	{
+		String content = _content;
+		int length = end - start;
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + content.charAt(i);
+		
+		String[] symbols = _symbols;
+		int mask = symbols.length - 1;
+		int index = (hash ^ (hash >>> 16)) & mask;
+		String symbol;
+		while ((symbol = symbols[index]) != null)
+		{
+			if (symbol.length() == length && content.regionMatches(start, symbol, 0, length))
+				return symbol;
+			index = (index + 1) & mask;
+		}
+		
+		symbol = content.substring(start, end);
+		if (_symbolCount < MAX_SYMBOLS)
+		{
+			symbols[index] = symbol;
+			if (++_symbolCount * 2 > symbols.length)
+				growSymbols();
+		}
+		return symbol;
+	}
+	
+	private void growSymbols()
 	{
-		int idxSpace = raw.indexOf(' ', startIndex);
-		int idxTab = raw.indexOf('\t', startIndex);
-		int idxNl = raw.indexOf('\n', startIndex);
-		if (idxSpace == -1) idxSpace = raw.length();
-		if (idxTab == -1) idxTab = raw.length();
-		if (idxNl == -1) idxNl = raw.length();
-		int idx = Math.min(idxSpace, Math.min(idxTab, idxNl));
-		return idx;
+		String[] old = _symbols;
+		String[] symbols = new String[old.length * 2];
+		int mask = symbols.length - 1;
+		for (String symbol : old)
+		{
+			if (symbol == null) continue;
+			int hash = symbol.hashCode();
+			int index = (hash ^ (hash >>> 16)) & mask;
+			while (symbols[index] != null)
+				index = (index + 1) & mask;
+			symbols[index] = symbol;
+		}
+		_symbols = symbols;
 	}
 	
-	private void processDeclaration(String raw) throws XMLException
+	private void processDeclaration() throws XMLException
 	{
-		Map<String, String> declar = parseAttributes(raw);
+		int start = getNextWhitespaceIndex(_parseStart + 1, _parseStop - 1);
+		Map<String, String> declar = parseAttributes(start, _parseStop - 1);
 		if (declar != null)
 		{
 			if (declar.containsKey("version")) this._root.setVersion(declar.get("version"));
@@ -487,6 +2354,65 @@ public class XMLParser {
 		_root = new Document();
 		_parent = _root.getDocumentElement();
 	}
+	
+	/**
+	 * Reset this parser so that it can be used again, dropping references to the last document and any
+	 * buffers that have grown unreasonably large.
+	 */
+	private void release()
+	{
+		_root = null;
+		_parent = null;
+		_content = null;
+		_filter = null;
+		_store = null;
+		_node = OffHeapDocument.NONE;
+		_binding = null;
+		_bound = null;
+		_bindTarget = null;
+		_bindField = null;
+		_preserveWhitespace = false;
+		_joinLines = false;
+		_positions = null;
+		_charset = null;
+		_verbatim = false;
+		_lineCount = 0;
+		if (_lineStarts.length > MAX_RETAINED_BUFFER / 4)
+			_lineStarts = new int[64];
+		_lineBase = 0;
+		_afterCR = false;
+		_contentShift = 0;
+		_more = false;
+		_foundElement = false;
+		_trackIndex = 0;
+		_trackLine = 1;
+		_trackLineStart = 0;
+		_trackBytes = 0;
+		_bomBytes = 0;
+		_parseStart = 0;
+		_parseStop = 0;
+		_depth = 0;
+		_skipDepth = 0;
+		if (_segments.length > MAX_RETAINED_BUFFER / 8)
+		{
+			_segments = new String[16];
+			_cdata = new boolean[16];
+		}
+		else
+		{
+			for (int i = 0; i < _segmentCount; i++)
+				_segments[i] = null;
+		}
+		_segmentCount = 0;
+		if (_segmentStart.length > MAX_RETAINED_BUFFER / 4)
+			_segmentStart = new int[16];
+		_path.setLength(0);
+		if (_buffer.capacity() > MAX_RETAINED_BUFFER)
+			_buffer = new StringBuilder();
+		else
+			_buffer.setLength(0);
+		_inUse = false;
+	}
 
 	private static void debug(String msg, Object... args)
 	{
@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Generates random documents for testing. The shape of the documents is controlled by the maximum depth,
+ * fan-out, number of attributes and length of text, and the same seed always gives the same document.
+ * Text is only put on elements without children. Text and attribute values include line breaks, tabs and
+ * other whitespace and control characters, and {@link #toXML(Document)} writes documents with comments,
+ * processing instructions and CDATA sections, the way they are found in files written by hand.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+public class DocumentGenerator {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	/** Characters used in text and attribute values, including ones which must be escaped, whitespace and control characters. */
+	private static final String TEXT_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789 .,;:!?-_'\"&<>/=\u00e6\u00f8\u00e5\u00e9\u4e2d\u6587"
+			+ " \t\n\r\u000b\u001f\u007f\u0085\u00a0\u2028";
+	private static final String NAME_START_CHARS = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ_";
+	private static final String NAME_CHARS = NAME_START_CHARS + "0123456789-.";
+	
+	private final Random random;
+	private int depth = 4;
+	private int fanOut = 4;
+	private int attributeCount = 3;
+	private int textLength = 16;
+	
+	public DocumentGenerator(long seed) {
+		this.random = new Random(seed);
+	}
+	
+	/**
+	 * Set the maximum number of levels of elements below the top level.
+	 * @param depth
+	 */
+	public void setDepth(int depth) {
+		this.depth = depth;
+	}
+	
+	/**
+	 * Set the maximum number of children of each element.
+	 * @param fanOut
+	 */
+	public void setFanOut(int fanOut) {
+		this.fanOut = fanOut;
+	}
+	
+	/**
+	 * Set the maximum number of attributes of each element.
+	 * @param attributeCount
+	 */
+	public void setAttributeCount(int attributeCount) {
+		this.attributeCount = attributeCount;
+	}
+	
+	/**
+	 * Set the maximum length of the text of each element.
+	 * @param textLength
+	 */
+	public void setTextLength(int textLength) {
+		this.textLength = textLength;
+	}
+	
+	/**
+	 * Generate a document with a single top level element.
+	 * @return
+	 */
+	public Document generate() {
+		Document document = new Document();
+		document.setVersion("1.0");
+		document.setEncoding("UTF-8");
+		document.addChild(generateElement(depth));
+		return document;
+	}
+	
+	/**
+	 * Generate an element with children down to the given number of levels.
+	 * @param levels
+	 * @return
+	 */
+	public Element generateElement(int levels) {
+		Element element = new Element(name());
+		int attributes = random.nextInt(attributeCount + 1);
+		for (int i = 0; i < attributes; i++) {
+			element.addAttribute(name() + i, text(random.nextInt(textLength + 1)));
+		}
+		int children = levels > 0 ? random.nextInt(fanOut + 1) : 0;
+		for (int i = 0; i < children; i++) {
+			element.addChild(generateElement(levels - 1));
+		}
+		if (children == 0) {
+			element.setText(text(random.nextInt(textLength + 1)));
+		}
+		return element;
+	}
+	
+	/**
+	 * Write a generated document of at least the given size in bytes to the given stream as UTF-8 text.
+	 * The document is a top level element holding generated elements one after another, so documents of
+	 * any size can be written without building them in memory first.
+	 * @param os
+	 * @param size - The size to reach, in bytes.
+	 * @return the number of bytes written.
+	 * @throws IOException
+	 */
+	public long write(OutputStream os, long size) throws IOException {
+		CountingStream counter = new CountingStream(os);
+		Writer writer = new OutputStreamWriter(counter, UTF_8);
+		writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n<Records>\n");
+		StringBuilder sb = new StringBuilder();
+		while (true) {
+			writer.flush();
+			if (counter.count >= size) break;
+			sb.setLength(0);
+			appendElement(sb, generateElement(depth), 1);
+			writer.write(sb.toString());
+		}
+		writer.write("</Records>\n");
+		writer.close();
+		return counter.count;
+	}
+	
+	/**
+	 * Write the given document as XML text with comments and processing instructions around its elements, and the
+	 * text of each element split into plain text, CDATA sections, comments and processing instructions.
+	 * @param document
+	 * @return
+	 */
+	public String toXML(Document document) {
+		StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
+		appendMarkup(sb, 0);
+		for (Element element : document.getChildren()) {
+			appendElement(sb, element, 0);
+		}
+		appendMarkup(sb, 0);
+		return sb.toString();
+	}
+	
+	private void appendElement(StringBuilder sb, Element element, int indent) {
+		for (int i = 0; i < indent; i++) sb.append('\t');
+		sb.append('<').append(element.getName());
+		for (String name : element.getAttributes().keySet()) {
+			sb.append(' ').append(name).append("=\"").append(Entities.encode(element.getAttribute(name), true)).append('"');
+		}
+		if (element.hasChildren()) {
+			sb.append(">\n");
+			for (Element child : element.getChildren()) {
+				appendMarkup(sb, indent + 1);
+				appendElement(sb, child, indent + 1);
+			}
+			appendMarkup(sb, indent + 1);
+			for (int i = 0; i < indent; i++) sb.append('\t');
+			sb.append("</").append(element.getName()).append(">\n");
+		}
+		else if (element.hasText()) {
+			sb.append('>');
+			appendText(sb, element.getText());
+			sb.append("</").append(element.getName()).append(">\n");
+		}
+		else {
+			sb.append(" />\n");
+		}
+	}
+	
+	/**
+	 * Sometimes write a comment or processing instruction on a line of its own.
+	 */
+	private void appendMarkup(StringBuilder sb, int indent) {
+		if (random.nextInt(4) != 0) return;
+		for (int i = 0; i < indent; i++) sb.append('\t');
+		appendMarkup(sb);
+		sb.append('\n');
+	}
+	
+	private void appendMarkup(StringBuilder sb) {
+		if (random.nextBoolean()) {
+			sb.append("<!-- ").append(text(random.nextInt(textLength + 1)).replace("-", "")).append(" -->");
+		}
+		else {
+			sb.append("<?jeximel ").append(text(random.nextInt(textLength + 1)).replace("?", "")).append("?>");
+		}
+	}
+	
+	/**
+	 * Write text in pieces, some of them as CDATA sections, with comments and processing instructions between them.
+	 */
+	private void appendText(StringBuilder sb, String text) {
+		// Whitespace and line breaks around text are left out when it is read, but whitespace in a CDATA section is
+		// kept, so CDATA sections only go where they begin and end on characters that are kept.
+		int first = 0;
+		while (first < text.length() && isBlank(text.charAt(first))) first++;
+		int last = text.length();
+		while (last > first && isBlank(text.charAt(last - 1))) last--;
+		int start = 0;
+		while (start < text.length()) {
+			int end = start + 1 + random.nextInt(text.length() - start);
+			String piece = text.substring(start, end);
+			if (start >= first && end <= last && random.nextInt(3) == 0 && !piece.contains("]]>")) {
+				sb.append("<![CDATA[").append(piece).append("]]>");
+			}
+			else {
+				sb.append(Entities.encode(piece, false));
+			}
+			if (end < text.length() && random.nextInt(4) == 0) {
+				appendMarkup(sb);
+			}
+			start = end;
+		}
+	}
+	
+	private static boolean isBlank(char c) {
+		return c <= ' ' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+	}
+	
+	private String name() {
+		int length = 1 + random.nextInt(8);
+		StringBuilder sb = new StringBuilder(length);
+		sb.append(NAME_START_CHARS.charAt(random.nextInt(NAME_START_CHARS.length())));
+		for (int i = 1; i < length; i++) {
+			sb.append(NAME_CHARS.charAt(random.nextInt(NAME_CHARS.length())));
+		}
+		return sb.toString();
+	}
+	
+	private String text(int length) {
+		StringBuilder sb = new StringBuilder(length);
+		for (int i = 0; i < length; i++) {
+			sb.append(TEXT_CHARS.charAt(random.nextInt(TEXT_CHARS.length())));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * Output stream keeping count of the bytes passing through it.
+	 */
+	private static class CountingStream extends OutputStream {
+		
+		private final OutputStream target;
+		private long count = 0;
+		
+		CountingStream(OutputStream target) {
+			this.target = target;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			target.write(b);
+			count++;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target.write(b, off, len);
+			count += len;
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			target.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			target.close();
+		}
+	}
+	
+}
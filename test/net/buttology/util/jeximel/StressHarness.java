@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2018  Magnus Bull
+ *
+ *  This file is part of jeximel.
+ *
+ *  jeximel is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  any later version.
+ *
+ *  jeximel is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with jeximel.  If not, see <https://www.gnu.org/licenses/>. 
+ */
+package net.buttology.util.jeximel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Checks that documents survive being read and written, and measures how reading and writing scale with
+ * the size of the file. Run it with the number of random documents to check and the largest file to
+ * measure, for example {@code java StressHarness 500 1g}. Reading a file of 1 GB needs a heap of several
+ * GB, so give the JVM enough with {@code -Xmx} for the largest size. The exit status is 1 if any check
+ * failed.
+ * @version 1.0.0
+ * @author Mudbill
+ */
+public class StressHarness {
+
+	private static final String CHARSET = "UTF-8";
+	private static final Charset UTF_8 = Charset.forName(CHARSET);
+	private static final double MB = 1024 * 1024;
+	
+	private int checks = 0;
+	private List<String> failures = new ArrayList<String>();
+	
+	public static void main(String[] args) throws Exception {
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+		long maxSize = args.length > 1 ? parseSize(args[1]) : parseSize("64m");
+		
+		StressHarness harness = new StressHarness();
+		System.out.printf("Checking round trips of %d generated documents...%n", rounds);
+		for (int seed = 0; seed < rounds; seed++) {
+			harness.roundTrip(seed);
+		}
+		System.out.printf("%d checks, %d failed.%n", harness.checks, harness.failures.size());
+		for (String failure : harness.failures) {
+			System.out.println("  " + failure);
+		}
+		
+		System.out.println();
+		System.out.printf("%12s %10s %10s %10s %10s %12s %12s%n", "size", "read ms", "read ms/MB", "write ms", "write ms/MB", "peak heap MB", "estimate MB");
+		for (long size = 1024; size <= maxSize; size *= 4) {
+			if (!harness.scale(size)) break;
+		}
+		
+		if (!harness.failures.isEmpty()) System.exit(1);
+	}
+	
+	/**
+	 * Generate a document from the given seed and check that it reads back the same in every mode.
+	 * @param seed
+	 */
+	private void roundTrip(long seed) throws IOException, XMLException {
+		Random random = new Random(seed);
+		DocumentGenerator generator = new DocumentGenerator(seed);
+		// Every twentieth document is wide and shallow, so that parallel writing splits the children of the top level
+		// element between tasks, and the children of some of those as well. They are kept light to keep the size down.
+		boolean wide = seed % 20 == 19;
+		generator.setDepth(wide ? 2 : random.nextInt(7));
+		generator.setFanOut(wide ? 128 + random.nextInt(64) : random.nextInt(9));
+		generator.setAttributeCount(random.nextInt(wide ? 3 : 6));
+		generator.setTextLength(random.nextInt(wide ? 11 : 41));
+		Document document = generator.generate();
+		Document expected = joined(document);
+		
+		byte[] written = write(document, 0);
+		Document read = read(written, 0);
+		check(seed, "read after write", expected.equals(read), expected.diff(read));
+		byte[] rewritten = write(read, 0);
+		check(seed, "write is stable", Arrays.equals(rewritten, write(read(rewritten, 0), 0)), null);
+		check(seed, "parallel write", Arrays.equals(written, write(document, XMLParser.OPTION_PARALLEL)), null);
+		Document exact = read(write(document, XMLParser.OPTION_EXACT), XMLParser.OPTION_PRESERVE_WHITESPACE);
+		check(seed, "exact write", document.equals(exact), document.diff(exact));
+		Document markup = read(generator.toXML(document).getBytes(UTF_8), 0);
+		check(seed, "comments and CDATA", expected.equals(markup), expected.diff(markup));
+		
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		XMLParser.writeCompressed(document, compressed, CHARSET, 0);
+		Document decompressed = XMLParser.readCompressed(new ByteArrayInputStream(compressed.toByteArray()), CHARSET);
+		check(seed, "compressed", expected.equals(decompressed), expected.diff(decompressed));
+		
+		OffHeapDocument offHeap = XMLParser.readOffHeap(new ByteArrayInputStream(written), CHARSET);
+		try {
+			Document fromOffHeap = offHeap.toDocument();
+			check(seed, "off-heap", expected.equals(fromOffHeap), expected.diff(fromOffHeap));
+		}
+		finally {
+			offHeap.close();
+		}
+		
+		Document retained = read(written, XMLParser.OPTION_RETAIN_SOURCE);
+		check(seed, "unchanged incremental write", Arrays.equals(written, writeIncremental(retained)), null);
+		Element[] elements = collect(retained);
+		Element changed = elements[random.nextInt(elements.length)];
+		if (!changed.hasChildren()) {
+			changed.setText("changed & <updated>");
+		}
+		else {
+			changed.addChild(new Element("Added"));
+		}
+		Document incremental = read(writeIncremental(retained), 0);
+		check(seed, "changed incremental write", retained.equals(incremental), retained.diff(incremental));
+		commented(seed, document, written);
+		
+		Document tracked = read(written, XMLParser.OPTION_TRACK_POSITIONS);
+		SourcePositions positions = tracked.getSourcePositions();
+		boolean positioned = true;
+		for (Element element : collect(tracked)) {
+			byte[] tag = ("<" + element.getName()).getBytes(UTF_8);
+			long offset = positions.getByteOffset(element);
+			positioned &= offset >= 0 && offset + tag.length <= written.length 
+					&& Arrays.equals(tag, Arrays.copyOfRange(written, (int) offset, (int) offset + tag.length));
+		}
+		check(seed, "byte offsets", positioned, null);
+		Element other = read(written, XMLParser.OPTION_TRACK_POSITIONS).getChildren()[0];
+		check(seed, "position of other document", positions.getLine(other) == -1 && positions.getByteOffset(other) == -1, null);
+		
+		// Entities are counted as written, so the estimated text may be a little longer than what was read.
+		MemoryFootprint estimated = XMLParser.estimate(new ByteArrayInputStream(written), CHARSET);
+		MemoryFootprint measured = read.getMemoryFootprint();
+		check(seed, "footprint estimate", estimated.getElementCount() == measured.getElementCount()
+				&& estimated.getAttributeCount() == measured.getAttributeCount()
+				&& estimated.getTextCount() == measured.getTextCount()
+				&& Math.abs(estimated.getRetainedSize() - measured.getRetainedSize()) <= measured.getRetainedSize() / 10, null);
+		
+		records(seed, expected, written);
+		journal(seed, random, written);
+	}
+	
+	/**
+	 * Put a comment inside the top level element, change that element, and check that the comment is still there
+	 * after writing incrementally.
+	 */
+	private void commented(long seed, Document document, byte[] written) throws XMLException {
+		if (!document.getChildren()[0].hasChildren()) return;
+		String text = new String(written, UTF_8);
+		// Values have their angle brackets escaped, so the first one after the declaration ends the top level start tag.
+		int tagEnd = text.indexOf('>', text.indexOf("?>") + 2) + 1;
+		String comment = "<!-- kept -->";
+		Document retained = read((text.substring(0, tagEnd) + comment + text.substring(tagEnd)).getBytes(UTF_8), XMLParser.OPTION_RETAIN_SOURCE);
+		Element top = retained.getChildren()[0];
+		top.addAttribute("changed", "yes");
+		top.setText("changed");
+		byte[] incremental = writeIncremental(retained);
+		Document reread = read(incremental, 0);
+		check(seed, "comment kept in changed element", new String(incremental, UTF_8).contains(comment) && retained.equals(reread), retained.diff(reread));
+	}
+	
+	/**
+	 * Check that iterating and streaming the written document gives the same elements as reading all of it.
+	 */
+	private void records(long seed, Document document, byte[] written) {
+		Element top = document.getChildren()[0];
+		List<Element> expected = Arrays.asList(top.getChildren());
+		
+		List<Element> iterated = new ArrayList<Element>();
+		Iterator<Element> records = XMLParser.iterate(new ByteArrayInputStream(written), CHARSET, 1);
+		while (records.hasNext()) {
+			iterated.add(records.next());
+		}
+		check(seed, "iterate by depth", expected.equals(iterated), null);
+		
+		Iterator<Element> named = XMLParser.iterate(new ByteArrayInputStream(written), CHARSET, top.getName());
+		check(seed, "iterate by name", named.hasNext() && top.equals(named.next()) && !named.hasNext(), null);
+		
+		List<Element> streamed;
+		try (Stream<Element> stream = XMLParser.stream(new ByteArrayInputStream(written), CHARSET, 1)) {
+			streamed = stream.parallel().collect(Collectors.toList());
+		}
+		check(seed, "parallel stream", expected.equals(streamed), null);
+	}
+	
+	/**
+	 * Make random changes to a journaled copy of the given document, including changes to elements after they were
+	 * removed, and check that the journal reads back the same as the document in memory.
+	 */
+	private void journal(long seed, Random random, byte[] written) throws IOException, XMLException {
+		File snapshot = File.createTempFile("jeximel-journal", ".xml");
+		File journal = File.createTempFile("jeximel-journal", ".journal");
+		try {
+			snapshot.delete();
+			journal.delete();
+			DocumentJournal dj = DocumentJournal.open(snapshot, journal, CHARSET);
+			// A small threshold makes some rounds compact the journal in the middle of the changes.
+			dj.setCompactThreshold(random.nextBoolean() ? 1 << 20 : 256);
+			Document document = dj.getDocument();
+			for (Element e : read(written, 0).getChildren()) {
+				document.addChild(e);
+			}
+			List<Element> removed = new ArrayList<Element>();
+			for (int i = 0; i < 40; i++) {
+				Element[] elements = collect(document);
+				if (elements.length == 0) {
+					document.addChild(new Element("Root"));
+					continue;
+				}
+				Element e = elements[random.nextInt(elements.length)];
+				switch (random.nextInt(7)) {
+				case 0:
+					e.remove();
+					removed.add(e);
+					break;
+				case 1:
+					Element added = e.addChild("Added" + i);
+					added.addAttribute("i", Integer.toString(i));
+					added.addChild("Inner").setText("inner " + i);
+					break;
+				case 2:
+					e.setText(" text & <" + i + ">\n\tline\r\n");
+					break;
+				case 3:
+					e.addAttribute("a" + random.nextInt(3), "value\n\t" + i + " ");
+					break;
+				case 4:
+					e.setName("Renamed" + i);
+					break;
+				case 5:
+					Map<Integer, Element> children = new HashMap<Integer, Element>();
+					Element[] current = e.getChildren();
+					for (int j = current.length - 1; j >= 0; j--) {
+						if (random.nextBoolean()) children.put(j, current[j]);
+					}
+					children.put(current.length, new Element("Replaced" + i));
+					e.setChildren(children);
+					break;
+				default:
+					if (!removed.isEmpty()) {
+						Element gone = removed.get(random.nextInt(removed.size()));
+						gone.setText("ghost " + i);
+						gone.addChild("Ghost" + i);
+					}
+				}
+			}
+			dj.close();
+			// The first reopening replays the journal and compacts it, and the second one reads the new snapshot.
+			for (String what : new String[] { "journal replay", "journal snapshot" }) {
+				DocumentJournal reopened = DocumentJournal.open(snapshot, journal, CHARSET);
+				try {
+					check(seed, what, document.equals(reopened.getDocument()), document.diff(reopened.getDocument()));
+				}
+				finally {
+					reopened.close();
+				}
+			}
+		}
+		finally {
+			snapshot.delete();
+			journal.delete();
+			new File(snapshot.getPath() + ".tmp").delete();
+			new File(journal.getPath() + ".tmp").delete();
+		}
+	}
+	
+	/**
+	 * Measure reading and writing a generated file of the given size.
+	 * @param size
+	 * @return false if the file was too large to read.
+	 */
+	private boolean scale(long size) throws IOException, XMLException {
+		File file = File.createTempFile("jeximel-stress", ".xml");
+		try {
+			DocumentGenerator generator = new DocumentGenerator(size);
+			OutputStream os = new BufferedOutputStream(new FileOutputStream(file));
+			long actualSize = generator.write(os, size);
+			double mb = actualSize / MB;
+			
+			MemoryFootprint footprint = XMLParser.estimate(new BufferedInputStream(new FileInputStream(file)), CHARSET);
+			
+			Document document;
+			resetPeakHeap();
+			long start = System.nanoTime();
+			try {
+				InputStream is = new BufferedInputStream(new FileInputStream(file));
+				document = XMLParser.read(is, CHARSET);
+			}
+			catch (OutOfMemoryError e) {
+				System.out.printf("%12d  out of memory, run with a larger -Xmx to go further.%n", actualSize);
+				return false;
+			}
+			long readTime = System.nanoTime() - start;
+			long peakHeap = getPeakHeap();
+			
+			start = System.nanoTime();
+			XMLParser.write(document, new NullStream(), CHARSET);
+			long writeTime = System.nanoTime() - start;
+			
+			System.out.printf("%12d %10.1f %10.2f %10.1f %10.2f %12.1f %12.1f%n", actualSize, readTime / 1e6, readTime / 1e6 / mb, 
+					writeTime / 1e6, writeTime / 1e6 / mb, peakHeap / MB, (footprint.getRetainedSize() + footprint.getSourceSize()) / MB);
+			return true;
+		}
+		finally {
+			file.delete();
+		}
+	}
+	
+	private void check(long seed, String what, boolean passed, List<String> diff) {
+		checks++;
+		if (!passed) {
+			failures.add(String.format("seed %d: %s%s", seed, what, diff == null ? "" : " " + diff));
+		}
+	}
+	
+	private static byte[] write(Document document, int options) throws XMLException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		XMLParser.write(document, os, CHARSET, options);
+		return os.toByteArray();
+	}
+	
+	private static byte[] writeIncremental(Document document) throws XMLException {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		XMLParser.writeIncremental(document, os, CHARSET, 0);
+		return os.toByteArray();
+	}
+	
+	private static Document read(byte[] bytes, int options) throws XMLException {
+		return XMLParser.read(new ByteArrayInputStream(bytes), CHARSET, options);
+	}
+	
+	/**
+	 * Copy the given document the way it reads back without {@link XMLParser#OPTION_PRESERVE_WHITESPACE}, with line
+	 * breaks left out of text and attribute values and whitespace trimmed from around text.
+	 */
+	private static Document joined(Document document) {
+		Document copy = new Document();
+		copy.setVersion(document.getVersion());
+		copy.setEncoding(document.getEncoding());
+		for (Element element : document.getChildren()) {
+			copy.addChild(joined(element));
+		}
+		return copy;
+	}
+	
+	private static Element joined(Element element) {
+		Element copy = new Element(element.getName());
+		for (Map.Entry<String, String> attribute : element.getAttributes().entrySet()) {
+			copy.addAttribute(attribute.getKey(), withoutLineBreaks(attribute.getValue()));
+		}
+		for (Element child : element.getChildren()) {
+			copy.addChild(joined(child));
+		}
+		if (element.getText() != null) {
+			String text = withoutLineBreaks(element.getText()).trim();
+			if (!text.isEmpty()) copy.setText(text);
+		}
+		return copy;
+	}
+	
+	private static String withoutLineBreaks(String text) {
+		return text.replaceAll("[\\n\\r\\u0085\\u2028\\u2029]", "");
+	}
+	
+	/**
+	 * Get all elements of the given document, parents before their children.
+	 */
+	private static Element[] collect(Document document) {
+		List<Element> elements = new ArrayList<Element>();
+		elements.addAll(Arrays.asList(document.getChildren()));
+		for (int i = 0; i < elements.size(); i++) {
+			elements.addAll(Arrays.asList(elements.get(i).getChildren()));
+		}
+		return elements.toArray(new Element[elements.size()]);
+	}
+	
+	private static void resetPeakHeap() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+		}
+	}
+	
+	private static long getPeakHeap() {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+	
+	private static long parseSize(String size) {
+		String s = size.trim().toLowerCase();
+		long unit = 1;
+		if (s.endsWith("k")) unit = 1024;
+		else if (s.endsWith("m")) unit = 1024 * 1024;
+		else if (s.endsWith("g")) unit = 1024 * 1024 * 1024;
+		if (unit != 1) s = s.substring(0, s.length() - 1);
+		return Long.parseLong(s) * unit;
+	}
+	
+	/**
+	 * Output stream throwing away everything written to it.
+	 */
+	private static class NullStream extends OutputStream {
+		
+		@Override
+		public void write(int b) {}
+		
+		@Override
+		public void write(byte[] b, int off, int len) {}
+	}
+	
+}